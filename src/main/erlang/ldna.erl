@@ -22,13 +22,73 @@
 -include_lib("riak_kv/include/riak_kv_vnode.hrl").
 
 -export([get_coverage_plan/1,
+         versioned_coverage_plan/1,
+         balanced_coverage_plan/1,
+         node_load/0,
+         alternates/2,
+         ring_version/0,
+         key_owners/2,
+         key_alternates/3,
          process_split/3,
          process_split/4,
+         index_counts/6,
+         index_histogram/6,
+         start_fold/4,
+         next_batch/1,
+         cancel_fold/1,
          fetch_vnode/2,
          version/0]).
 
+%% called through ?MODULE to pick up a new version of the code
+-export([load_loop/1]).
+
+-ifdef(TEST).
+-include_lib("eunit/include/eunit.hrl").
+-endif.
+
+-define(DEFAULT_BATCH_COUNT, 1000).
+-define(DEFAULT_BATCH_BYTES, 4194304).
+%% how long next_batch/1 waits for a batch before answering not_ready
+-define(POLL_TIMEOUT, 5000).
+%% how long a fold waits for the caller before giving up
+-define(DEFAULT_IDLE_TIMEOUT, 600000).
+%% n_val the coverage plans are made for, as get_coverage_plan/1
+-define(COVERAGE_NVAL, 3).
+%% how long balanced_coverage_plan/1 waits for node_load/0 of each node
+-define(LOAD_TIMEOUT, 5000).
+%% gets of the keys matched by 2i in flight at once, per vnode
+-define(DEFAULT_GET_WINDOW, 32).
+%% how long a get of the vnode may take before the fold gives up
+-define(GET_TIMEOUT, 60000).
+
+%% a batch being filled by a fold, sent to the stream owner when full
+-record(batch, {owner :: pid(),
+                ref :: reference(),
+                vnode_pid :: pid() | undefined,
+                items = [] :: list(),
+                count = 0 :: non_neg_integer(),
+                bytes = 0 :: non_neg_integer(),
+                max_count :: pos_integer(),
+                target_count :: pos_integer(), % of this batch, up to max_count
+                max_bytes :: pos_integer(),
+                idle_timeout :: pos_integer(),
+                project :: undefined | {[binary()], undefined | [binary() | '*'], list()},
+                slice :: undefined | {non_neg_integer(), pos_integer()},
+                resume_after :: undefined | binary(),
+                get_window = ?DEFAULT_GET_WINDOW :: pos_integer(),
+                stopped = false :: boolean()}).
+
+%% state of the process that hands batches to the caller
+-record(stream, {ref :: reference(),
+                 producer :: pid(),
+                 monitor :: reference() | undefined,
+                 pending :: undefined | {pid() | done | error, term()},
+                 waiting :: undefined | {pid(), reference()},
+                 poll_timer :: reference() | undefined,
+                 idle_timeout :: pos_integer()}).
+
 -spec version() -> tuple(non_neg_integer()).
-version() -> {0,0,5}.
+version() -> {0,0,28}.
 
 % lists:flatten([riak_kv_vnode:fold({I,node()}, fun({B,K},V,Acc) -> [riak_object:from_binary(B,K,V)|Acc]end, [])||I<-riak_core_ring:my_indices(element(2, riak_core_ring_manager:get_my_ring()))]).
 
@@ -39,6 +99,270 @@ version() -> {0,0,5}.
 get_coverage_plan(ReqID) when is_integer(ReqID) ->
     riak_core_coverage_plan:create_plan(all, 3, 1, ReqID, riak_kv).
 
+%% @doc returns {RingVersion, Plan}; the plan stays valid as long as
+%% ring_version/0 returns the same version.
+-spec versioned_coverage_plan(non_neg_integer()) -> {non_neg_integer(), term()}.
+versioned_coverage_plan(ReqID) when is_integer(ReqID) ->
+    Version = ring_version(),
+    {Version, get_coverage_plan(ReqID)}.
+
+%% @doc a coverage plan of the same form as get_coverage_plan/1, where the
+%% replica covering each partition is picked to even out the work of the
+%% nodes: the bytes of the vnodes each one folds for this plan, plus the
+%% folds it is already running (each counted as an average vnode). A vnode
+%% folded walks all the data of the bucket in it, taken to be in proportion
+%% to its size, so a vnode covering more partitions still left is
+%% preferred at the same cost. Returns {RingVersion, Plan}
+%% as versioned_coverage_plan/1.
+-spec balanced_coverage_plan(non_neg_integer()) -> {non_neg_integer(), term()}.
+balanced_coverage_plan(ReqID) when is_integer(ReqID) ->
+    Version = ring_version(),
+    {ok, Ring} = riak_core_ring_manager:get_my_ring(),
+    Owners = list_to_tuple(riak_core_ring:all_owners(Ring)),
+    UpNodes = riak_core_node_watcher:nodes(riak_kv),
+    {Busy, Sizes} = cluster_load(UpNodes),
+    {Version, balanced_plan(Owners, UpNodes, Busy, Sizes)}.
+
+%% the plan of balanced_coverage_plan/1 for a ring whose position P is
+%% owned by element(P + 1, Owners). As in riak_core_coverage_plan, a vnode
+%% covering just some of the partitions it holds comes with the index of
+%% each of those, and a partition is the keys whose first owner it is.
+balanced_plan(Owners, UpNodes, Busy, Sizes) ->
+    Partitions = lists:seq(0, tuple_size(Owners) - 1),
+    case cover(Partitions, Owners, UpNodes, Busy, Sizes, []) of
+        {ok, Cover} ->
+            {[VNode || {VNode, _} <- Cover],
+             [{Index, [element(1, element(K + 1, Owners)) || K <- Keyspaces]}
+              || {{Index, _}, Keyspaces} <- Cover,
+                 length(Keyspaces) < ?COVERAGE_NVAL]};
+        Error ->
+            Error
+    end.
+
+%% @doc {node(), Folds, [{Index, Bytes}]}: how many folds for presto run
+%% on this node, and the bytes on disk of each vnode it owns (0 when the
+%% backend keeps no files of its own per vnode).
+-spec node_load() -> {node(), non_neg_integer(), [{non_neg_integer(), non_neg_integer()}]}.
+node_load() ->
+    {ok, Ring} = riak_core_ring_manager:get_my_ring(),
+    {node(), local_folds(), [{I, vnode_bytes(I)} || I <- riak_core_ring:my_indices(Ring)]}.
+
+%% The folds running on a node are counted by a process of their own,
+%% registered as ldna_load and started by the first fold, which monitors
+%% each of them; so node_load/0 asks it instead of looking through every
+%% process of the node.
+count_fold() ->
+    load_counter() ! {ldna_fold, self()},
+    ok.
+
+load_counter() ->
+    case whereis(ldna_load) of
+        undefined ->
+            Pid = proc_lib:spawn(fun() -> ?MODULE:load_loop(0) end),
+            case catch register(ldna_load, Pid) of
+                true ->
+                    Pid;
+                _ -> % another fold started one meanwhile
+                    exit(Pid, kill),
+                    load_counter()
+            end;
+        Pid ->
+            Pid
+    end.
+
+load_loop(Folds) ->
+    receive
+        {ldna_fold, Pid} ->
+            erlang:monitor(process, Pid),
+            ?MODULE:load_loop(Folds + 1);
+        {'DOWN', _, process, _, _} ->
+            ?MODULE:load_loop(Folds - 1);
+        {ldna_folds, From, Ref} ->
+            From ! {Ref, Folds},
+            ?MODULE:load_loop(Folds)
+    end.
+
+local_folds() ->
+    case whereis(ldna_load) of
+        undefined ->
+            0;
+        Pid ->
+            Ref = erlang:monitor(process, Pid),
+            Pid ! {ldna_folds, self(), Ref},
+            receive
+                {Ref, Folds} ->
+                    erlang:demonitor(Ref, [flush]),
+                    Folds;
+                {'DOWN', Ref, process, _, _} ->
+                    0
+            after ?LOAD_TIMEOUT ->
+                    erlang:demonitor(Ref, [flush]),
+                    0
+            end
+    end.
+
+vnode_bytes(Index) ->
+    Root = case app_helper:get_env(riak_kv, storage_backend) of
+               riak_kv_bitcask_backend -> app_helper:get_env(bitcask, data_root);
+               riak_kv_eleveldb_backend -> app_helper:get_env(eleveldb, data_root);
+               _ -> undefined
+           end,
+    case Root of
+        undefined ->
+            0;
+        _ ->
+            filelib:fold_files(filename:join(Root, integer_to_list(Index)), ".*", true,
+                               fun(F, Acc) -> filelib:file_size(F) + Acc end, 0)
+    end.
+
+%% returns {Busy, Sizes}: the bytes each node is busy with, and the size
+%% of each vnode, an average one when unknown
+cluster_load(Nodes) ->
+    {Replies, _BadNodes} = rpc:multicall(Nodes, ?MODULE, node_load, [], ?LOAD_TIMEOUT),
+    Loads = [L || {_, _, _} = L <- Replies],
+    Known = [{I, Bytes + 1} || {_, _, Vnodes} <- Loads, {I, Bytes} <- Vnodes],
+    Avg = case Known of
+              [] -> 1;
+              _ -> lists:sum([B || {_, B} <- Known]) div length(Known)
+          end,
+    Busy = dict:from_list([{Node, Folds * Avg} || {Node, Folds, _} <- Loads]),
+    {Busy, {dict:from_list(Known), Avg}}.
+
+vnode_size(Index, {Sizes, Avg}) ->
+    case dict:find(Index, Sizes) of
+        {ok, Size} -> Size;
+        error -> Avg
+    end.
+
+%% Partitions are ring positions not covered yet. The vnode at position P
+%% holds the keys of partitions P-NVal+1..P, so partition K can be covered
+%% by the vnodes at K..K+NVal-1; of those on up nodes, the one with the
+%% least cost per partition it newly covers is picked.
+cover([], _, _, _, _, Acc) ->
+    {ok, lists:reverse(Acc)};
+cover([K|_] = Partitions, Owners, UpNodes, Busy, Sizes, Acc) ->
+    Q = tuple_size(Owners),
+    Candidates =
+        [begin
+             New = [(Pos - D + Q) rem Q || D <- lists:seq(0, ?COVERAGE_NVAL - 1),
+                                           lists:member((Pos - D + Q) rem Q, Partitions)],
+             Cost = (node_busy(Node, Busy) + vnode_size(Index, Sizes)) / length(New),
+             {Cost, Pos, VNode, New}
+         end
+         || Pos <- [(K + D) rem Q || D <- lists:seq(0, ?COVERAGE_NVAL - 1)],
+            {Index, Node} = VNode <- [element(Pos + 1, Owners)],
+            lists:member(Node, UpNodes)],
+    case lists:sort(Candidates) of
+        [] ->
+            {error, insufficient_vnodes_available};
+        [{_, _, {BestIndex, BestNode} = Best, Covered}|_] ->
+            Busy1 = dict:update_counter(BestNode, vnode_size(BestIndex, Sizes), Busy),
+            cover(Partitions -- Covered, Owners, UpNodes, Busy1, Sizes,
+                  [{Best, lists:sort(Covered)}|Acc])
+    end.
+
+%% @doc vnodes on other nodes that hold the same keys as VNode with
+%% FilterVNodes of a coverage plan: [{AltVNode, AltFilterVNodes}] to fold
+%% instead of it when it is slow or down, or [] when the other nodes that
+%% are up don't hold them all.
+-spec alternates({non_neg_integer(), node()}, [{non_neg_integer(), [non_neg_integer()]}]) ->
+                        [{{non_neg_integer(), node()}, [{non_neg_integer(), [non_neg_integer()]}]}].
+alternates({Index, Node}, FilterVNodes) ->
+    {ok, Ring} = riak_core_ring_manager:get_my_ring(),
+    Owners = riak_core_ring:all_owners(Ring),
+    Positions = lists:zip([I || {I, _} <- Owners], lists:seq(0, length(Owners) - 1)),
+    Q = length(Owners),
+    Keyspaces = case proplists:get_value(Index, FilterVNodes) of
+                    undefined ->
+                        Pos = proplists:get_value(Index, Positions),
+                        [(Pos - D + Q) rem Q || D <- lists:seq(0, ?COVERAGE_NVAL - 1)];
+                    Indexes ->
+                        [proplists:get_value(I, Positions) || I <- Indexes]
+                end,
+    UpNodes = riak_core_node_watcher:nodes(riak_kv) -- [Node],
+    OwnerTuple = list_to_tuple(Owners),
+    case cover(Keyspaces, OwnerTuple, UpNodes, dict:new(), {dict:new(), 1}, []) of
+        {ok, Cover} ->
+            [{AltVNode, [{AltIndex, [element(1, element(K + 1, OwnerTuple)) || K <- Ks]}]}
+             || {{AltIndex, _} = AltVNode, Ks} <- Cover];
+        _ ->
+            []
+    end.
+
+node_busy(Node, Busy) ->
+    case dict:find(Node, Busy) of
+        {ok, Bytes} -> Bytes;
+        error -> 0
+    end.
+
+%% @doc hash of everything a coverage plan depends on: who owns each
+%% partition, and which nodes are up for riak_kv.
+-spec ring_version() -> non_neg_integer().
+ring_version() ->
+    {ok, Ring} = riak_core_ring_manager:get_my_ring(),
+    erlang:phash2({riak_core_ring:all_owners(Ring),
+                   lists:sort(riak_core_node_watcher:nodes(riak_kv))}).
+
+%% @doc groups keys by the vnode to get them from: the first primary in
+%% their preference list that is up, as a get with r=1 would, or else its
+%% first fallback; {error, {no_owner, Key}} when no vnode is up for a key.
+%% Used for point lookups on __key, which need no coverage plan at all.
+-spec key_owners(term(), [binary()]) -> [{{non_neg_integer(), node()}, [binary()]}] |
+                                        {error, {no_owner, binary()}}.
+key_owners(Bucket0, Keys) ->
+    Bucket = case Bucket0 of
+                 {<<"default">>, B} -> B;
+                 _ -> Bucket0
+             end,
+    NVal = proplists:get_value(n_val, riak_core_bucket:get_bucket(Bucket)),
+    UpNodes = riak_core_node_watcher:nodes(riak_kv),
+    try lists:foldl(
+          fun(Key, Acc) ->
+                  DocIdx = riak_core_util:chash_key({Bucket, Key}),
+                  case key_owner(riak_core_apl:get_apl_ann(DocIdx, NVal, UpNodes)) of
+                      {ok, VNode} -> orddict:append(VNode, Key, Acc);
+                      error -> throw({no_owner, Key})
+                  end
+          end, orddict:new(), Keys) of
+        Owners -> orddict:to_list(Owners)
+    catch
+        throw:{no_owner, _} = NoOwner -> {error, NoOwner}
+    end.
+
+%% @doc keys of a point lookup on VNode grouped by the vnodes on other up
+%% nodes that hold them as primaries, to get them from when VNode is slow
+%% or down; each key is in just one group. [] when some key has no other
+%% primary that is up.
+-spec key_alternates(term(), {non_neg_integer(), node()}, [binary()]) ->
+                            [{{non_neg_integer(), node()}, [binary()]}].
+key_alternates(Bucket0, {_, Node}, Keys) ->
+    Bucket = case Bucket0 of
+                 {<<"default">>, B} -> B;
+                 _ -> Bucket0
+             end,
+    NVal = proplists:get_value(n_val, riak_core_bucket:get_bucket(Bucket)),
+    UpNodes = riak_core_node_watcher:nodes(riak_kv) -- [Node],
+    try lists:foldl(
+          fun(Key, Acc) ->
+                  DocIdx = riak_core_util:chash_key({Bucket, Key}),
+                  Preflist = riak_core_apl:get_apl_ann(DocIdx, NVal, UpNodes),
+                  case [VNode || {VNode, primary} <- Preflist] of
+                      [VNode|_] -> orddict:append(VNode, Key, Acc);
+                      [] -> throw(no_alternate) % fallbacks don't have it
+                  end
+          end, orddict:new(), Keys) of
+        Alternates -> orddict:to_list(Alternates)
+    catch
+        throw:no_alternate -> []
+    end.
+
+key_owner(Preflist) ->
+    case {[VNode || {VNode, primary} <- Preflist], Preflist} of
+        {[VNode|_], _} -> {ok, VNode};
+        {[], [{VNode, fallback}|_]} -> {ok, VNode}; % only fallbacks are up
+        {[], []} -> error
+    end.
+
 %% TODO: write small tests around this function.
 %%       It works with minimal tests but 
 %% @doc returns list of riak_object (internal format).
@@ -60,7 +384,7 @@ process_split(Bucket, VNode, FilterVNodes) ->
                  (_,_,Acc) ->
                       Acc
               end,
-    riak_kv_vnode:fold(VNode, FoldFun, []).
+    bucket_fold(VNode, Bucket, FoldFun, []).
 
 
 %% @doc returns list of riak_object (internal format).
@@ -99,24 +423,621 @@ build_query({range, Field, Start, End}, Q) ->
     Q?KV_INDEX_Q{
         filter_field= Field, start_term= Start,
         end_term= End, return_terms=false};
+build_query({eq, <<"$bucket">>, _}, Q) ->
+    build_query(all, Q);
 build_query({eq, Field, Val}, Q) ->
     Q?KV_INDEX_Q{
         filter_field= Field, start_term= Val,
-        end_term= Val, return_terms=false}.
+        end_term= Val, return_terms=false};
+build_query(all, Q) ->
+    %% every key of the bucket, as riak_index makes of a $bucket query
+    Q?KV_INDEX_Q{filter_field= <<"$bucket">>, return_terms=false}.
+
+%% @doc {Total, Capped, [Count]}: how many keys of Bucket a vnode of a
+%% coverage plan has, and how many of them each query of start_fold/4
+%% matches. Counting a query stops at Max keys, so a count of Max means at
+%% least Max. The total is counted on until folding the vnode would cost
+%% more than fetching the keys of the query matching fewest, at KeyCost
+%% times an object folded each; Capped is true when it stopped there.
+-spec index_counts(binary() | {binary(), binary()}, {integer(), atom()},
+                   [{integer(), [integer()]}], list(), pos_integer(), number()) ->
+                          {non_neg_integer(), boolean(), [non_neg_integer()]}.
+index_counts(Bucket, VNode, FilterVNodes, Qs, Max, KeyCost) ->
+    Count = fun(Q, M) -> count_index(Bucket, VNode, FilterVNodes, Q, M) end,
+    Counts = [Count(Q, Max) || Q <- Qs],
+    TotalMax = case [C || C <- Counts, C < Max] of
+                   [] -> Max;
+                   Exact -> max(Max, trunc(KeyCost * lists:min(Exact)) + 1)
+               end,
+    Total = Count(all, TotalMax),
+    {Total, Total >= TotalMax, Counts}.
+
+%% a key matching several queries of a union or an intersection is counted
+%% for each of them, which is what fetching them costs anyway
+count_index(Bucket, VNode, FilterVNodes, {Op, Qs}, Max) when Op =:= union;
+                                                              Op =:= intersect ->
+    Counts = [count_index(Bucket, VNode, FilterVNodes, Q, Max) || Q <- Qs],
+    case Op of
+        union -> min(Max, lists:sum(Counts));
+        intersect -> lists:min(Counts)
+    end;
+count_index(Bucket, VNode, FilterVNodes, Q, Max) ->
+    fold_index(Bucket, VNode, FilterVNodes, Q,
+               fun(Keys, N) when N + length(Keys) >= Max -> {stop, Max};
+                  (Keys, N) -> N + length(Keys)
+               end, 0).
+
+%% @doc {Complete, [{Low, High, Entries, Distinct}]}: the terms of Field a
+%% vnode of a coverage plan has for Bucket, in ranges of about as many
+%% index entries each, as few as Buckets, no term spanning two of them.
+%% Reading stops at Max entries; Complete is false then, and the ranges
+%% cover just the lowest terms.
+-spec index_histogram(binary() | {binary(), binary()}, {integer(), atom()},
+                      [{integer(), [integer()]}], binary(), pos_integer(), pos_integer()) ->
+                             {boolean(), [{term(), term(), pos_integer(), pos_integer()}]}.
+index_histogram(Bucket, VNode, FilterVNodes, Field, Max, Buckets) ->
+    Query = (build_query(field_range(Field), ?KV_INDEX_Q{}))?KV_INDEX_Q{
+               return_terms = Field =/= <<"$key">>},
+    {N, Terms} = fold_query(Bucket, VNode, FilterVNodes, Query,
+                            fun(Results, {N0, Acc}) ->
+                                    Acc1 = lists:foldl(fun(R, A) -> [index_term(R)|A] end,
+                                                       Acc, Results),
+                                    case N0 + length(Results) of
+                                        N1 when N1 >= Max -> {stop, {N1, Acc1}};
+                                        N1 -> {N1, Acc1}
+                                    end
+                            end, {0, []}),
+    %% the index is read in term order, so the first Max are the lowest
+    Lowest = lists:sublist(lists:sort(Terms), Max),
+    Depth = max(1, (length(Lowest) + Buckets - 1) div Buckets),
+    {N < Max, histogram(runs(Lowest), Depth, [])}.
+
+%% every term of a field, as IndexQuery bounds its open ranges
+field_range(Field) ->
+    case binary:longest_common_suffix([Field, <<"_int">>]) of
+        4 -> {range, Field, -(1 bsl 63), (1 bsl 63) - 1};
+        _ -> {range, Field, <<>>, <<255>>}
+    end.
+
+index_term({Term, _Key}) -> Term;
+index_term(Key) -> Key. % of $key
+
+%% [{Term, Entries}] of sorted terms
+runs([]) -> [];
+runs([T|Ts]) -> runs(Ts, T, 1, []).
+
+runs([T|Ts], T, N, Acc) -> runs(Ts, T, N + 1, Acc);
+runs([T|Ts], Prev, N, Acc) -> runs(Ts, T, 1, [{Prev, N}|Acc]);
+runs([], Prev, N, Acc) -> lists:reverse([{Prev, N}|Acc]).
+
+histogram([], _, Acc) ->
+    lists:reverse(Acc);
+histogram([{T, N}|Runs], Depth, [{Low, _, Entries, Distinct}|Acc]) when Entries < Depth ->
+    histogram(Runs, Depth, [{Low, T, Entries + N, Distinct + 1}|Acc]);
+histogram([{T, N}|Runs], Depth, Acc) ->
+    histogram(Runs, Depth, [{T, T, N, 1}|Acc]).
+
+%% @doc starts a fold of a split whose objects are handed out in batches
+%% by next_batch/1. Options are
+%%   {batch_count, N} and {batch_bytes, N}: a batch is sent when either is reached,
+%%   {first_batch_count, N}: the first batch has just N items, and each one
+%%     after it twice as many up to batch_count, so that the first rows
+%%     come back quickly; 0, as leaving it out, for batch_count,
+%%   {resume_after, Key}: skip the keys up to Key, when a fold that sends
+%%     them in order failed after that one,
+%%   {query, Q}: fetch via 2i with a query as process_split/4, or
+%%     {union, [Q]}: the keys matching any of them, or
+%%     {intersect, [Q]}: the keys matching all of them, most selective first,
+%%   {index_only, [Field]}: with a query but an intersection, answer it from
+%%     the index alone as {Key, undefined, [[{Field, Term}]]} for each key,
+%%     the objects not being read at all,
+%%     e.g. with {query, {eq, <<"$bucket">>, _}} and no fields, just the
+%%     keys of the bucket,
+%%   {get_window, N}: gets of the keys a query matches in flight at once,
+%%   {idle_timeout, Ms}: the fold is abandoned when nobody asks for a batch.
+%% Each batch pauses the fold until the caller asks for the next one, so
+%% that the caller controls the pace and only a batch or two are in memory.
+-spec start_fold(binary() | {binary(), binary()}, {integer(), atom()},
+                 [{integer(), [integer()]}], list()) -> {ok, pid()}.
+start_fold(Bucket, VNode, FilterVNodes, Opts) ->
+    Pid = proc_lib:spawn(fun() -> stream_init(Bucket, VNode, FilterVNodes, Opts) end),
+    {ok, Pid}.
+
+%% @doc returns {ok, Objects} with the next batch, {done, Objects} with the
+%% last one, not_ready if no batch got ready within a few seconds (just ask
+%% again), or {error, Reason}.
+-spec next_batch(pid()) -> {ok, list()} | {done, list()} | not_ready | {error, term()}.
+next_batch(Pid) ->
+    MRef = erlang:monitor(process, Pid),
+    Pid ! {ldna_next, self(), MRef},
+    receive
+        {MRef, Reply} ->
+            erlang:demonitor(MRef, [flush]),
+            Reply;
+        {'DOWN', MRef, process, Pid, Reason} ->
+            {error, Reason}
+    end.
+
+%% @doc stops a fold started by start_fold/4 before it finishes.
+-spec cancel_fold(pid()) -> ok.
+cancel_fold(Pid) ->
+    Pid ! {ldna_cancel, self()},
+    ok.
+
+stream_init(Bucket, {Index, Node} = VNode, FilterVNodes, Opts) ->
+    count_fold(), % for node_load/0
+    Ref = make_ref(),
+    IdleTimeout = proplists:get_value(idle_timeout, Opts, ?DEFAULT_IDLE_TIMEOUT),
+    MaxCount = proplists:get_value(batch_count, Opts, ?DEFAULT_BATCH_COUNT),
+    Batch = #batch{owner = self(),
+                   ref = Ref,
+                   vnode_pid = vnode_pid(Index, Node),
+                   max_count = MaxCount,
+                   target_count = first_batch_count(Opts, MaxCount),
+                   max_bytes = proplists:get_value(batch_bytes, Opts, ?DEFAULT_BATCH_BYTES),
+                   idle_timeout = IdleTimeout,
+                   project = projection(Opts),
+                   slice = proplists:get_value(slice, Opts),
+                   resume_after = proplists:get_value(resume_after, Opts),
+                   get_window = proplists:get_value(get_window, Opts, ?DEFAULT_GET_WINDOW)},
+    Producer = case {proplists:get_value(keys, Opts), proplists:get_value(query, Opts)} of
+                   {undefined, undefined} ->
+                       fun(B) -> fold_split(Bucket, VNode, FilterVNodes, B) end;
+                   {undefined, Q0} ->
+                       case proplists:get_value(index_only, Opts) of
+                           undefined ->
+                               fun(B) -> index_split(Bucket, VNode, FilterVNodes, Q0, B) end;
+                           Fields ->
+                               fun(B) -> index_only_split(Bucket, VNode, FilterVNodes, Q0, Fields, B) end
+                       end;
+                   {Keys, _} ->
+                       fun(B) -> fetch_keys(Bucket, Keys, VNode, B) end
+               end,
+    Owner = self(),
+    {Pid, MRef} = spawn_monitor(fun() -> run_producer(Owner, Ref, Producer, Batch) end),
+    stream_loop(#stream{ref = Ref, producer = Pid, monitor = MRef,
+                        idle_timeout = IdleTimeout}).
+
+first_batch_count(Opts, MaxCount) ->
+    case proplists:get_value(first_batch_count, Opts, 0) of
+        0 -> MaxCount;
+        N -> min(MaxCount, N)
+    end.
+
+run_producer(Owner, Ref, Producer, Batch0) ->
+    try Producer(Batch0) of
+        #batch{items = Items} ->
+            Owner ! {Ref, done, lists:reverse(Items)}
+    catch
+        throw:stop_fold ->
+            ok;
+        Class:Reason ->
+            Owner ! {Ref, error, {Class, Reason}}
+    end.
+
+stream_loop(#stream{ref = Ref, monitor = MRef, idle_timeout = IdleTimeout} = S) ->
+    receive
+        {Ref, batch, FunPid, Items} ->
+            stream_reply(S#stream{pending = {FunPid, Items}});
+        {Ref, done, Items} ->
+            stream_reply(S#stream{pending = {done, Items}});
+        {Ref, error, Reason} ->
+            stream_reply(S#stream{pending = {error, Reason}});
+        {ldna_next, From, Tag} ->
+            TRef = erlang:send_after(?POLL_TIMEOUT, self(), {Ref, poll_timeout, Tag}),
+            stream_reply(S#stream{waiting = {From, Tag}, poll_timer = TRef});
+        {Ref, poll_timeout, Tag} ->
+            case S#stream.waiting of
+                {From, Tag} ->
+                    From ! {Tag, not_ready},
+                    stream_loop(S#stream{waiting = undefined, poll_timer = undefined});
+                _ ->
+                    stream_loop(S)
+            end;
+        {ldna_cancel, _} ->
+            stream_stop(S);
+        {'DOWN', MRef, process, _, normal} ->
+            %% done or error has been queued before
+            stream_loop(S#stream{monitor = undefined});
+        {'DOWN', MRef, process, _, Reason} ->
+            stream_reply(S#stream{monitor = undefined, pending = {error, Reason}})
+    after IdleTimeout ->
+            error_logger:warning_msg("ldna fold ~p abandoned after ~p ms idle~n",
+                                     [self(), IdleTimeout]),
+            stream_stop(S)
+    end.
+
+stream_reply(#stream{waiting = undefined} = S) ->
+    stream_loop(S);
+stream_reply(#stream{pending = undefined} = S) ->
+    stream_loop(S);
+stream_reply(#stream{waiting = {From, Tag}, pending = {done, Items}} = S) ->
+    cancel_poll_timer(S),
+    From ! {Tag, {done, Items}};
+stream_reply(#stream{waiting = {From, Tag}, pending = {error, Reason}} = S) ->
+    cancel_poll_timer(S),
+    From ! {Tag, {error, Reason}},
+    stream_stop(S#stream{pending = undefined});
+stream_reply(#stream{ref = Ref, waiting = {From, Tag}, pending = {FunPid, Items}} = S) ->
+    cancel_poll_timer(S),
+    From ! {Tag, {ok, Items}},
+    %% let the fold fill the next batch while the caller decodes this one
+    FunPid ! {Ref, continue},
+    stream_loop(S#stream{waiting = undefined, pending = undefined, poll_timer = undefined}).
+
+stream_stop(#stream{ref = Ref, producer = Pid, pending = Pending}) ->
+    case Pending of
+        {FunPid, _} when is_pid(FunPid) -> FunPid ! {Ref, stop};
+        _ -> ok
+    end,
+    exit(Pid, kill),
+    ok.
+
+cancel_poll_timer(#stream{poll_timer = undefined}) -> ok;
+cancel_poll_timer(#stream{poll_timer = TRef}) -> erlang:cancel_timer(TRef).
+
+%% vnode fold producing batches of riak_object
+fold_split(Bucket, VNode, FilterVNodes, Batch) ->
+    Filter = coverage_filter(Bucket, VNode, FilterVNodes),
+    FoldFun = fun(_, _, #batch{stopped = true} = B) ->
+                      B;
+                 ({B0,K},V,B) when B0 =:= Bucket ->
+                      case Filter(K) andalso in_slice(K, B) of
+                          true ->
+                              add_object(riak_object:from_binary(B0,K,V), byte_size(V), B);
+                          false ->
+                              B
+                      end;
+                 (_,_,B) ->
+                      B
+              end,
+    bucket_fold(VNode, Bucket, FoldFun, Batch).
 
+%% riak_kv_vnode:fold/3 asking the backend for the objects of Bucket only.
+%% Only leveldb gains from it, seeking to the key range of the bucket so
+%% that the cost is that of the bucket rather than of the whole vnode;
+%% bitcask still walks its whole keydir and every data file of the vnode,
+%% dropping the entries of other buckets as it goes, and memory walks its
+%% whole table. The fold funs still check the bucket, for backends that
+%% ignore the option.
+bucket_fold(VNode, Bucket, FoldFun, Acc0) ->
+    Req = riak_core_util:make_fold_req(FoldFun, Acc0, false, [{bucket, Bucket}]),
+    riak_core_vnode_master:sync_spawn_command(VNode, Req, riak_kv_vnode_master).
+
+%% 2i query producing batches of riak_object. With {intersect, Qs} the
+%% keys of all queries but the last are collected, each one keeping only
+%% those the ones before it matched, and the last one fetches the keys it
+%% matches of those; only the first set is as large as its query.
+index_split(Bucket, VNode, FilterVNodes, {intersect, Qs}, Batch) ->
+    {Narrow, [Last]} = lists:split(length(Qs) - 1, Qs),
+    Within = lists:foldl(
+               fun(Q, all) ->
+                       index_keys(Bucket, VNode, FilterVNodes, Q, all);
+                  (Q, Within0) ->
+                       case sets:size(Within0) of
+                           0 -> Within0;
+                           _ -> index_keys(Bucket, VNode, FilterVNodes, Q, Within0)
+                       end
+               end, all, Narrow),
+    case Within =/= all andalso sets:size(Within) =:= 0 of
+        true -> Batch;
+        false -> fetch_index(Bucket, VNode, FilterVNodes, Last, Within, Batch)
+    end;
+index_split(Bucket, VNode, FilterVNodes, Q0, Batch) ->
+    fetch_index(Bucket, VNode, FilterVNodes, Q0, all, Batch).
+
+%% fetches the keys matching a query that are in Within (or all of them).
+%% With {union, Qs} the queries run one after another on the vnode, and a
+%% key matching more than one of them is fetched only once.
+fetch_index(Bucket, VNode, FilterVNodes, {union, Qs}, Within, Batch) ->
+    {_, Batch1} =
+        lists:foldl(
+          fun(_, {_, #batch{stopped = true}} = Acc) ->
+                  Acc;
+             (Q, Acc) ->
+                  fold_index(Bucket, VNode, FilterVNodes, Q,
+                             fun(Keys, {Seen, B}) ->
+                                     New = [K || K <- within(lists:usort(Keys), Within),
+                                                 not sets:is_element(K, Seen)],
+                                     {lists:foldl(fun sets:add_element/2, Seen, New),
+                                      fetch_keys(Bucket, New, VNode, B)}
+                             end, Acc)
+          end, {sets:new(), Batch}, Qs),
+    Batch1;
+fetch_index(Bucket, VNode, FilterVNodes, {range, Field, _, _} = Q0, Within, Batch)
+  when Field =/= <<"$key">> ->
+    %% a key with several terms in the range comes once for each
+    fetch_index(Bucket, VNode, FilterVNodes, {union, [Q0]}, Within, Batch);
+fetch_index(Bucket, VNode, FilterVNodes, Q0, Within, Batch) ->
+    fold_index(Bucket, VNode, FilterVNodes, Q0,
+               fun(Keys, B) -> fetch_keys(Bucket, within(Keys, Within), VNode, B) end,
+               Batch).
+
+%% 2i query producing batches of {Key, undefined, [Row]} straight from the
+%% index: each field of Row has the term the key is indexed with. A key
+%% matching several queries of a union, or with several terms in a range,
+%% is sent once, with the first term, as a fold sends each object once.
+index_only_split(Bucket, VNode, FilterVNodes, {union, Qs}, Fields, Batch) ->
+    {_, Batch1} =
+        lists:foldl(
+          fun(_, {_, #batch{stopped = true}} = Acc) ->
+                  Acc;
+             (Q, Acc) ->
+                  fold_index_terms(Bucket, VNode, FilterVNodes, Q, Fields,
+                                   fun(Pairs, {Seen, B}) ->
+                                           New = [P || {K, _} = P <- lists:ukeysort(1, Pairs),
+                                                       not sets:is_element(K, Seen)],
+                                           {lists:foldl(fun({K, _}, S) -> sets:add_element(K, S) end,
+                                                        Seen, New),
+                                            add_terms(New, Fields, B)}
+                                   end, Acc)
+          end, {sets:new(), Batch}, Qs),
+    Batch1;
+index_only_split(Bucket, VNode, FilterVNodes, {eq, <<"$bucket">>, _} = Q0, [], Batch) ->
+    %% just the keys of the bucket; only leveldb keeps them in an index
+    try
+        fold_index_terms(Bucket, VNode, FilterVNodes, Q0, [],
+                         fun(Pairs, B) -> add_terms(Pairs, [], B) end, Batch)
+    catch
+        error:{indexes_not_supported, _} ->
+            fold_split(Bucket, VNode, FilterVNodes, Batch)
+    end;
+index_only_split(Bucket, VNode, FilterVNodes, {range, Field, _, _} = Q0, Fields, Batch)
+  when Field =/= <<"$key">> ->
+    index_only_split(Bucket, VNode, FilterVNodes, {union, [Q0]}, Fields, Batch);
+index_only_split(Bucket, VNode, FilterVNodes, Q0, Fields, Batch) ->
+    fold_index_terms(Bucket, VNode, FilterVNodes, Q0, Fields,
+                     fun(Pairs, B) -> add_terms(Pairs, Fields, B) end, Batch).
+
+%% as fold_index/6, but Fun gets [{Key, Term}]; the terms are only read
+%% from the index when there are fields to put them in, and an equality
+%% query has just the one anyway
+fold_index_terms(Bucket, VNode, FilterVNodes, Q0, Fields, Fun, Acc) ->
+    ReturnTerms = Fields =/= [] andalso element(1, Q0) =:= range,
+    Query = (build_query(Q0, ?KV_INDEX_Q{}))?KV_INDEX_Q{return_terms = ReturnTerms},
+    fold_query(Bucket, VNode, FilterVNodes, Query,
+               fun(Results, A) -> Fun([index_pair(R, Q0) || R <- Results], A) end,
+               Acc).
+
+index_pair({Term, Key}, _) -> {Key, Term};
+index_pair(Key, {eq, _, Val}) -> {Key, Val};
+index_pair(Key, _) -> {Key, undefined}.
+
+add_terms(Pairs, Fields, Batch) ->
+    lists:foldl(fun(_, #batch{stopped = true} = B) ->
+                        B;
+                   ({Key, Term}, B) ->
+                        Item = {Key, undefined, [[{F, Term} || F <- Fields]]},
+                        add_item(Item, erlang:external_size(Item), B)
+                end, Batch, [P || {K, _} = P <- Pairs, in_slice(K, Batch)]).
+
+%% the set of keys matching a query that are in Within (or all of them)
+index_keys(Bucket, VNode, FilterVNodes, {union, Qs}, Within) ->
+    lists:foldl(fun(Q, Acc) ->
+                        sets:union(Acc, index_keys(Bucket, VNode, FilterVNodes, Q, Within))
+                end, sets:new(), Qs);
+index_keys(Bucket, VNode, FilterVNodes, Q0, Within) ->
+    fold_index(Bucket, VNode, FilterVNodes, Q0,
+               fun(Keys, Acc) ->
+                       lists:foldl(fun sets:add_element/2, Acc, within(Keys, Within))
+               end, sets:new()).
+
+within(Keys, all) ->
+    Keys;
+within(Keys, Set) ->
+    [K || K <- Keys, sets:is_element(K, Set)].
+
+%% runs a query of build_query/2 on VNode, folding Fun over the chunks of
+%% keys sent back; Fun returns {stop, Acc} to end the query early
+fold_index(Bucket, VNode, FilterVNodes, Q0, Fun, Acc) ->
+    fold_query(Bucket, VNode, FilterVNodes, build_query(Q0, ?KV_INDEX_Q{}), Fun, Acc).
+
+fold_query(Bucket, VNode, FilterVNodes, Query, Fun, Acc) ->
+    ReqID = make_req_id(),
+    riak_core_vnode_master:coverage(
+      riak_kv_index_fsm:req(Bucket, none, Query),
+      VNode,
+      FilterVNodes,
+      {raw, ReqID, self()},
+      riak_kv_vnode_master),
+    fold_index_loop(ReqID, Fun, Acc).
+
+fold_index_loop(ReqId, Fun, Acc) ->
+    receive
+        {ReqId, {error, Reason}} ->
+            erlang:error(Reason);
+        {ReqId, {From, _Bucket, Keys}} ->
+            case Fun(Keys, Acc) of
+                {stop, Acc1} ->
+                    _ = riak_kv_vnode:stop_fold(From),
+                    Acc1;
+                Acc1 ->
+                    _ = riak_kv_vnode:ack_keys(From),
+                    fold_index_loop(ReqId, Fun, Acc1)
+            end;
+        {ReqId, {_Bucket, Keys}} ->
+            case Fun(Keys, Acc) of
+                {stop, Acc1} -> Acc1; % the rest is left in the mailbox of this call
+                Acc1 -> fold_index_loop(ReqId, Fun, Acc1)
+            end;
+        {ReqId, done} ->
+            Acc
+    end.
+
+fetch_keys(Bucket, Keys, Vnode, #batch{get_window = Window} = Batch) ->
+    get_many(Bucket, [K || K <- Keys, in_slice(K, Batch)], Vnode, Window,
+             fun({ok, Obj}, B) ->
+                     add_object(Obj, erlang:external_size(Obj), B);
+                ({error, _}, B) -> % deleted since it was indexed
+                     B
+             end, Batch).
+
+%% with {slice, {I, N}} a split covers the keys of its vnode that hash to I
+%% keys up to resume_after have been read before, see start_fold/4
+in_slice(Key, #batch{resume_after = After}) when is_binary(After), Key =< After -> false;
+in_slice(_, #batch{slice = undefined}) -> true;
+in_slice(Key, #batch{slice = {I, N}}) -> erlang:phash2(Key, N) =:= I.
+
+coverage_filter(Bucket, {Index, _}, FilterVNodes) ->
+    FilterVNode = proplists:get_value(Index, FilterVNodes),
+    case riak_kv_coverage_filter:build_filter(Bucket, none, FilterVNode) of
+        none -> fun(_) -> true end;
+        Filter -> Filter
+    end.
+
+%% @doc batches the object as it is, or just the projected fields of it.
+add_object(Obj, Size, #batch{project = undefined} = B) ->
+    add_item(Obj, Size, B);
+add_object(Obj, _, #batch{project = {Fields, Path, Filter}} = B) ->
+    case project(Obj, Fields, Path, Filter) of
+        [] ->
+            B;
+        Rows ->
+            Item = {riak_object:key(Obj), vtag(Obj), Rows},
+            add_item(Item, erlang:external_size(Item), B)
+    end.
+
+add_item(_, _, #batch{stopped = true} = B) ->
+    B;
+add_item(Item, Size, #batch{items = Items, count = Count, bytes = Bytes} = B0) ->
+    B = B0#batch{items = [Item|Items], count = Count + 1, bytes = Bytes + Size},
+    case B#batch.count >= B#batch.target_count orelse B#batch.bytes >= B#batch.max_bytes of
+        true -> send_batch(B);
+        false -> B
+    end.
+
+%% hands a full batch to the stream owner and waits until it is consumed.
+send_batch(#batch{owner = Owner, ref = Ref, items = Items, idle_timeout = IdleTimeout} = B) ->
+    MRef = erlang:monitor(process, Owner),
+    Owner ! {Ref, batch, self(), lists:reverse(Items)},
+    receive
+        {Ref, continue} ->
+            erlang:demonitor(MRef, [flush]),
+            B#batch{items = [], count = 0, bytes = 0,
+                    target_count = min(B#batch.max_count, 2 * B#batch.target_count)};
+        {Ref, stop} ->
+            erlang:demonitor(MRef, [flush]),
+            stop_fold(B);
+        {'DOWN', MRef, process, Owner, _} ->
+            stop_fold(B)
+    after IdleTimeout ->
+            erlang:demonitor(MRef, [flush]),
+            stop_fold(B)
+    end.
+
+%% riak_kv_worker (async folds) and run_producer/4 catch stop_fold; a fold
+%% running inside the vnode itself must not throw, so it just skips the rest.
+stop_fold(#batch{vnode_pid = VnodePid} = B) ->
+    case VnodePid =:= undefined orelse VnodePid =:= self() of
+        true -> B#batch{items = [], count = 0, bytes = 0, stopped = true};
+        false -> throw(stop_fold)
+    end.
+
+%% {fields, [Field]} makes the fold decode each JSON value and send
+%% {Key, VTag, Rows} instead of the riak_object, where a row is a proplist of
+%% just those fields. {path, [Key | '*']} picks the rows out of the document
+%% like JSONPath does for subtables; without it the document is the only row.
+%% {filter, [{Field, NullAllowed, Ranges}]} drops rows not matching all of
+%% them, see match_ranges/2.
+projection(Opts) ->
+    case proplists:get_value(fields, Opts) of
+        undefined -> undefined;
+        Fields -> {Fields, proplists:get_value(path, Opts),
+                   proplists:get_value(filter, Opts, [])}
+    end.
+
+project(Obj, Fields, Path, Filter) ->
+    [{_, Value}|_] = riak_object:get_contents(Obj),
+    try mochijson2:decode(Value) of
+        Doc ->
+            [[{F, json_value(V)} || F <- Fields, {_, V} <- [lists:keyfind(F, 1, Props)]]
+             || {struct, Props} <- json_rows(Doc, Path), match_filter(Props, Filter)]
+    catch _:_ ->
+            [] % not a JSON document, as the cursor would skip it anyway
+    end.
+
+match_filter(Props, Filter) ->
+    lists:all(fun({Field, NullAllowed, Ranges}) ->
+                      case lists:keyfind(Field, 1, Props) of
+                          {_, V} when V =:= null orelse V =:= <<>> -> NullAllowed;
+                          {_, V} -> match_ranges(V, Ranges);
+                          false -> NullAllowed
+                      end
+              end, Filter).
+
+%% Presto checks the predicate again, so any value that can't be compared
+%% here (e.g. a number in a JSON string) is let through rather than dropped.
+match_ranges(V, Ranges) ->
+    lists:any(fun({eq, X}) ->
+                      not comparable(V, X) orelse V == X;
+                 ({range, Low, High}) ->
+                      above(V, Low) andalso below(V, High)
+              end, Ranges).
+
+above(_, unbounded) -> true;
+above(V, {inclusive, X}) -> not comparable(V, X) orelse V >= X;
+above(V, {exclusive, X}) -> not comparable(V, X) orelse V > X.
+
+below(_, unbounded) -> true;
+below(V, {inclusive, X}) -> not comparable(V, X) orelse V =< X;
+below(V, {exclusive, X}) -> not comparable(V, X) orelse V < X.
+
+comparable(V, X) when is_number(V), is_number(X) -> true;
+comparable(V, X) when is_binary(V), is_binary(X) -> true;
+comparable(V, X) when is_boolean(V), is_boolean(X) -> true;
+comparable(_, _) -> false.
+
+json_rows(Doc, undefined) ->
+    [Doc];
+json_rows(Doc, Path) ->
+    case {json_path(Doc, Path), lists:member('*', Path)} of
+        {[List], false} when is_list(List) -> List;
+        {Values, _} -> Values
+    end.
+
+json_path(Value, []) ->
+    [Value];
+json_path({struct, Props}, ['*'|Rest]) ->
+    lists:append([json_path(V, Rest) || {_, V} <- Props]);
+json_path(List, ['*'|Rest]) when is_list(List) ->
+    lists:append([json_path(V, Rest) || V <- List]);
+json_path({struct, Props}, [Key|Rest]) ->
+    case lists:keyfind(Key, 1, Props) of
+        {_, V} -> json_path(V, Rest);
+        false -> []
+    end;
+json_path(_, _) ->
+    [].
+
+%% scalars are sent as they are; nested objects and arrays as JSON text
+json_value({struct, _} = V) -> iolist_to_binary(mochijson2:encode(V));
+json_value(V) when is_list(V) -> iolist_to_binary(mochijson2:encode(V));
+json_value(V) -> V.
+
+vtag(Obj) ->
+    [{MD, _}|_] = riak_object:get_contents(Obj),
+    case dict:find(<<"X-Riak-VTag">>, MD) of
+        {ok, VTag} -> iolist_to_binary(VTag);
+        error -> undefined
+    end.
+
+vnode_pid(Index, Node) ->
+    case rpc:call(Node, riak_core_vnode_manager, get_vnode_pid, [Index, riak_kv_vnode]) of
+        {ok, Pid} -> Pid;
+        _ -> undefined
+    end.
 
 %% vnode, bucket name => all riak objects in local
-%% TODO: enable it to specify bucket filters, and 2i
 %% as this is 'coverage' operation, no quorum and
 %% no inter-node access should occur.
 fetch_vnode(VNode, Bucket) ->
-    riak_kv_vnode:fold(VNode,
-                       fun({B,K},V,Acc) when B =:= Bucket ->
-                               [riak_object:from_binary(B,K,V)|Acc];
-                          (_,_,Acc) ->
-                               Acc
-                       end,
-                       []).
+    bucket_fold(VNode, Bucket,
+                fun({B,K},V,Acc) when B =:= Bucket ->
+                        [riak_object:from_binary(B,K,V)|Acc];
+                   (_,_,Acc) ->
+                        Acc
+                end,
+                []).
 
 
 
@@ -129,40 +1050,51 @@ keysend_loop(ReqId, Partition, Vnode, Acc) ->
             ER;
         {ReqId, {From, Bucket, Keys}} ->
             _ = riak_kv_vnode:ack_keys(From),
-            Objects = 
-                lists:foldl(fun(Key, List) ->
-                                    {ok, Obj} = try_partition(Bucket, Key, Vnode, none),
-                                    [Obj|List]
-                            end, [], Keys),
-            keysend_loop(ReqId, Partition, Vnode, Objects ++ Acc);
-
+            keysend_loop(ReqId, Partition, Vnode, get_objects(Bucket, Keys, Vnode, Acc));
         {ReqId, {Bucket, Keys}} ->
-            Objects = 
-                lists:foldl(fun(Key, List) ->
-                                    {ok, Obj} = try_partition(Bucket, Key, Vnode, none),
-                                    [Obj|List]
-                            end, [], Keys),
-            keysend_loop(ReqId, Partition, Vnode, Objects ++ Acc);
-
+            keysend_loop(ReqId, Partition, Vnode, get_objects(Bucket, Keys, Vnode, Acc));
         {ReqId, done} ->
             {ok, Acc}
     end.
 
+get_objects(Bucket, Keys, Vnode, Acc) ->
+    get_many(Bucket, Keys, Vnode, ?DEFAULT_GET_WINDOW,
+             fun({ok, Obj}, L) -> [Obj|L];
+                ({error, _}, L) -> L % deleted since it was indexed
+             end, Acc).
 
-% riak_kv_pipe_get
-try_partition(Bucket, Key, Vnode, _FittingDetails) ->
-    ReqId = make_req_id(),
-    %% Start = os:timestamp(),
+%% riak_kv_pipe_get, pipelined: gets the objects of Keys from Vnode with up
+%% to Window requests in flight, and folds Fun over each {ok, Obj} or
+%% {error, Reason} as it comes back, in no particular order. Once Fun
+%% returns a stopped batch no more gets are sent.
+get_many(Bucket, Keys, Vnode, Window, Fun, Acc) ->
+    First = make_req_id(),
+    get_loop(Bucket, Keys, Vnode, Window, Fun, Acc, {First, First, 0}).
+
+%% requests First..Next-1 have been sent, InFlight of them not answered yet
+get_loop(_, [], _, _, _, Acc, {_, _, 0}) ->
+    Acc;
+get_loop(Bucket, [Key|Keys], Vnode, Window, Fun, Acc, {First, Next, InFlight})
+  when InFlight < Window, not (is_record(Acc, batch) andalso Acc#batch.stopped) ->
     riak_core_vnode_master:command(
       Vnode,
-      ?KV_GET_REQ{bkey={Bucket, Key}, req_id=ReqId},
-      {raw, ReqId, self()},
+      ?KV_GET_REQ{bkey={Bucket, Key}, req_id=Next},
+      {raw, Next, self()},
       riak_kv_vnode_master),
+    get_loop(Bucket, Keys, Vnode, Window, Fun, Acc, {First, Next + 1, InFlight + 1});
+get_loop(_, _, _, _, _, Acc, {_, _, 0}) ->
+    Acc; % stopped
+get_loop(Bucket, Keys, Vnode, Window, Fun, Acc, {First, Next, InFlight}) ->
+    Keys1 = case is_record(Acc, batch) andalso Acc#batch.stopped of
+                true -> []; % just wait for those in flight
+                false -> Keys
+            end,
     receive
-        {ReqId, {r, {ok, Obj}, _, _}} ->
-            {ok, Obj};
-        {ReqId, {r, {error, _} = Error, _, _}} ->
-            Error
+        {ReqId, {r, Result, _, _}} when is_integer(ReqId), ReqId >= First, ReqId < Next ->
+            get_loop(Bucket, Keys1, Vnode, Window, Fun, Fun(Result, Acc),
+                     {First, Next, InFlight - 1})
+    after ?GET_TIMEOUT ->
+            erlang:error({get_timeout, Vnode})
     end.
 
 make_req_id() ->
@@ -196,3 +1128,79 @@ make_req_id() ->
 
 %% reg_name(Mod, Index, Node) ->
 %%     {reg_name(Mod, Index), Node}.
+
+-ifdef(TEST).
+
+%% a ring of Q partitions owned by Nodes in turn
+test_owners(Q, Nodes) ->
+    Inc = (1 bsl 160) div Q,
+    list_to_tuple([{P * Inc, lists:nth(P rem length(Nodes) + 1, Nodes)}
+                   || P <- lists:seq(0, Q - 1)]).
+
+%% the partition indexes a vnode holds, as riak_core_coverage_plan puts
+%% them in its filters: keyspaces P-N..P-1 of n_keyspaces/3, each turned
+%% into the index of the partition after it
+riak_filter(Index, Owners) ->
+    Q = tuple_size(Owners),
+    Inc = (1 bsl 160) div Q,
+    P = Index div Inc,
+    lists:sort([(((K + 1) rem Q) * Inc)
+                || K <- [X rem Q || X <- lists:seq(Q + P - ?COVERAGE_NVAL, Q + P - 1)]]).
+
+%% asserts that the plan covers every partition exactly once, each from a
+%% vnode on an up node that holds it
+assert_cover({VNodes, FilterVNodes}, Owners, UpNodes) ->
+    Covered =
+        lists:append(
+          [begin
+               ?assert(lists:member(Node, UpNodes)),
+               ?assertEqual({Index, Node}, lists:keyfind(Index, 1, tuple_to_list(Owners))),
+               Held = riak_filter(Index, Owners),
+               case proplists:get_value(Index, FilterVNodes) of
+                   undefined ->
+                       Held;
+                   Filter ->
+                       ?assert(length(Filter) < ?COVERAGE_NVAL),
+                       ?assertEqual([], Filter -- Held),
+                       Filter
+               end
+           end || {Index, Node} <- VNodes]),
+    ?assertEqual(lists:sort([I || {I, _} <- tuple_to_list(Owners)]), lists:sort(Covered)).
+
+no_load() ->
+    {dict:new(), {dict:new(), 1}}.
+
+balanced_plan_test_() ->
+    Nodes = [n0, n1, n2, n3],
+    Owners = test_owners(64, Nodes),
+    {Busy, Sizes} = no_load(),
+    Skewed = dict:from_list([{n0, 1000}, {n2, 50}]),
+    [?_test(assert_cover(balanced_plan(Owners, Nodes, Busy, Sizes), Owners, Nodes)),
+     ?_test(assert_cover(balanced_plan(Owners, Nodes -- [n1], Busy, Sizes), Owners, Nodes -- [n1])),
+     ?_test(assert_cover(balanced_plan(Owners, Nodes, Skewed, Sizes), Owners, Nodes)),
+     ?_test(assert_cover(balanced_plan(test_owners(8, [n0, n1, n2]), [n0, n1, n2], Busy, Sizes),
+                         test_owners(8, [n0, n1, n2]), [n0, n1, n2])),
+     %% with partition 1 on n1, n2 and n3 only
+     ?_assertEqual({error, insufficient_vnodes_available},
+                   balanced_plan(Owners, [n0], Busy, Sizes))].
+
+key_owner_test_() ->
+    [?_assertEqual({ok, {1, b}}, key_owner([{{0, a}, fallback}, {{1, b}, primary}])),
+     ?_assertEqual({ok, {0, a}}, key_owner([{{0, a}, fallback}])),
+     ?_assertEqual(error, key_owner([]))].
+
+histogram_test_() ->
+    [?_assertEqual([{a, a, 3, 1}, {b, d, 4, 3}],
+                   histogram(runs([a, a, a, b, c, d, d]), 3, [])),
+     ?_assertEqual([{1, 1, 1, 1}, {2, 2, 1, 1}, {3, 3, 1, 1}],
+                   histogram(runs([1, 2, 3]), 1, [])),
+     ?_assertEqual([], histogram(runs([]), 1, []))].
+
+balanced_plan_avoids_busy_test() ->
+    Nodes = [n0, n1, n2, n3],
+    Owners = test_owners(64, Nodes),
+    {_, Sizes} = no_load(),
+    {VNodes, _} = balanced_plan(Owners, Nodes, dict:from_list([{n0, 1000000}]), Sizes),
+    ?assertEqual([], [V || {_, n0} = V <- VNodes]).
+
+-endif.
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpAuthException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// @doc batches of objects of a split, as sent by ldna:start_fold/4
+public interface BatchStream extends Closeable {
+    // returned by poll(), by identity
+    OtpErlangList NOT_READY = new OtpErlangList();
+
+    // @doc returns next batch of objects, or null when the split has finished.
+    OtpErlangList next()
+            throws IOException, OtpErlangExit, OtpAuthException;
+
+    // @doc as next(), but returns NOT_READY when no batch came within
+    // timeoutNanos, if the stream can tell; it can be read on after that.
+    // Streams which can't just wait for the batch.
+    default OtpErlangList poll(long timeoutNanos)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        return next();
+    }
+
+    boolean isDone();
+
+    // @doc stops the folds in Riak unless they have already finished
+    @Override
+    void close();
+
+    // @doc starts a split over, skipping the keys up to resumeAfter unless
+    // it is null, see ReadKeys
+    interface Restart {
+        BatchStream start(byte[] resumeAfter)
+                throws IOException, OtpErlangExit, OtpAuthException;
+    }
+}
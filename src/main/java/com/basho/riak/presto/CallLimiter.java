@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import io.airlift.log.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// @doc bounds the calls a worker has in flight to each Riak node, see
+// DirectConnection. A call over the limit waits up to waitMillis for one
+// to finish and then fails, and the waiting is counted in the metrics.
+public class CallLimiter {
+    private static final Logger log = Logger.get(CallLimiter.class);
+
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>(); // per Riak node
+    private final int maxPendingCalls;
+    private final long waitMillis;
+
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong waitTimeouts = new AtomicLong();
+
+    public CallLimiter(int maxPendingCalls, long waitMillis) {
+        checkArgument(maxPendingCalls > 0, "maxPendingCalls must be positive");
+        checkArgument(waitMillis >= 0, "waitMillis is negative");
+        this.maxPendingCalls = maxPendingCalls;
+        this.waitMillis = waitMillis;
+    }
+
+    // @doc takes a turn to call node, waiting for one if there are
+    // maxPendingCalls already; release() gives it back
+    public void acquire(String node) throws IOException {
+        Semaphore permits = permits(node);
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waiters.incrementAndGet();
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to call " + node, e);
+        } finally {
+            waiters.decrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        if (!acquired) {
+            waitTimeouts.incrementAndGet();
+            log.warn("%d calls to %s pending for %d ms", maxPendingCalls, node, waitMillis);
+            throw new IOException("too many pending calls to " + node + " for " + waitMillis + " ms");
+        }
+    }
+
+    public void release(String node) {
+        permits(node).release();
+    }
+
+    private Semaphore permits(String node) {
+        Semaphore s = permits.get(node);
+        if (s == null) {
+            permits.putIfAbsent(node, new Semaphore(maxPendingCalls));
+            s = permits.get(node);
+        }
+        return s;
+    }
+
+    public int getMaxPendingCalls() {
+        return maxPendingCalls;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    // @doc callers waiting for their turn right now
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    // @doc how many calls had to wait for their turn, and for how long in total
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getWaitTimeNanos() {
+        return waitNanos.get();
+    }
+
+    public long getWaitTimeouts() {
+        return waitTimeouts.get();
+    }
+}
@@ -23,6 +23,8 @@ import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class Coverage {
     //private final node;
     private static final Logger log = Logger.get(Coverage.class);
@@ -36,6 +38,11 @@ public class Coverage {
         this.coveragePlan = null;
     }
 
+    public Coverage(OtpErlangTuple coveragePlan) {
+        this.conn = null;
+        this.coveragePlan = coveragePlan;
+    }
+
     @NotNull
     public void plan() {
         try {
@@ -52,31 +59,51 @@ public class Coverage {
     }
 
     public List<SplitTask> getSplits() {
-        log.debug("%s", this.coveragePlan.toString());
-        OtpErlangList vnodes = (OtpErlangList) this.coveragePlan.elementAt(0);
-        OtpErlangObject filterVnodes = this.coveragePlan.elementAt(1);
-
-        //System.out.println(vnodes);
-        //System.out.println(filterVnodes);
+        return getSplits(1);
+    }
 
+    // @doc splits each vnode of the plan into slices of its keys,
+    // so that a scan can run on more threads than there are vnodes
+    public List<SplitTask> getSplits(int slicesPerVnode) {
         List<SplitTask> l = new ArrayList<SplitTask>();
+        for (OtpErlangTuple vnode : getVnodes()) {
+            l.addAll(getSplits(vnode, slicesPerVnode));
+        }
+        return l;
+    }
 
-        for (OtpErlangObject obj : vnodes) {
+    // @doc the vnodes of the plan, as {Index, Node}
+    public List<OtpErlangTuple> getVnodes() {
+        List<OtpErlangTuple> l = new ArrayList<OtpErlangTuple>();
+        for (OtpErlangObject obj : (OtpErlangList) this.coveragePlan.elementAt(0)) {
+            l.add((OtpErlangTuple) obj);
+        }
+        return l;
+    }
 
-            // {Index, Node}
-            OtpErlangTuple vnode = (OtpErlangTuple) obj;
-            OtpErlangObject index = vnode.elementAt(0);
-            String nodeName = ((OtpErlangAtom) vnode.elementAt(1)).atomValue();
+    // @doc the slices of one vnode of the plan
+    public List<SplitTask> getSplits(OtpErlangTuple vnode, int slicesPerVnode) {
+        checkArgument(slicesPerVnode > 0, "slicesPerVnode must be positive");
+        OtpErlangObject filterVnodes = this.coveragePlan.elementAt(1);
+        String nodeName = ((OtpErlangAtom) vnode.elementAt(1)).atomValue();
+        List<SplitTask> l = new ArrayList<SplitTask>();
+        if (slicesPerVnode == 1) {
             OtpErlangObject[] a = {vnode, filterVnodes};
-            OtpErlangTuple t = new OtpErlangTuple(a);
-
-            SplitTask task = new SplitTask(nodeName, t);
-            l.add(task);
+            l.add(new SplitTask(nodeName, new OtpErlangTuple(a)));
+            return l;
+        }
+        for (int i = 0; i < slicesPerVnode; i++) {
+            OtpErlangObject[] slice = {new OtpErlangLong(i), new OtpErlangLong(slicesPerVnode)};
+            OtpErlangObject[] a = {vnode, filterVnodes, new OtpErlangTuple(slice)};
+            l.add(new SplitTask(nodeName, new OtpErlangTuple(a)));
         }
-
         return l;
     }
 
+    public int getVnodeCount() {
+        return ((OtpErlangList) this.coveragePlan.elementAt(0)).arity();
+    }
+
     public String toString() {
         return coveragePlan.toString();
     }
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpAuthException;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import io.airlift.log.Logger;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc keeps the coverage plan between queries. Before each use the version
+// of the ring (a hash of partition owners and up nodes, see
+// ldna:ring_version/0) is checked, and the plan is only computed again after
+// the membership or ownership has changed. With riak.scan.balanced-coverage
+// the replicas are picked by the load of each Riak node, which changes
+// without the ring, so such a plan is also made again after
+// riak.scan.rebalance-ms. Hits, misses and the time spent computing plans
+// are exported over JMX.
+public class CoveragePlanCache {
+    private static final Logger log = Logger.get(CoveragePlanCache.class);
+    private static final int REQ_ID = 9979; // same plan for the same ring
+
+    private final DirectConnection conn;
+    private final boolean balanced;
+    private final long rebalanceNanos;
+    private OtpErlangObject version;
+    private OtpErlangTuple plan;
+    private long planNanos; // when the plan was made
+
+    private long hits;
+    private long misses;
+    private long lastRecomputeNanos;
+    private long totalRecomputeNanos;
+
+    @Inject
+    public CoveragePlanCache(DirectConnection conn, RiakConfig config) {
+        this.conn = checkNotNull(conn, "conn is null");
+        checkNotNull(config, "config is null");
+        this.balanced = config.isBalancedCoverage();
+        this.rebalanceNanos = TimeUnit.MILLISECONDS.toNanos(config.getRebalanceMillis());
+    }
+
+    public synchronized OtpErlangTuple getPlan()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        if (plan != null && !(balanced && System.nanoTime() - planNanos > rebalanceNanos)
+                && conn.getRingVersion().equals(version)) {
+            hits++;
+            return plan;
+        }
+        misses++;
+        long start = System.nanoTime();
+        // {RingVersion, Plan}
+        OtpErlangTuple t = balanced
+                ? conn.getBalancedCoveragePlan(REQ_ID)
+                : conn.getVersionedCoveragePlan(REQ_ID);
+        planNanos = System.nanoTime();
+        lastRecomputeNanos = planNanos - start;
+        totalRecomputeNanos += lastRecomputeNanos;
+        OtpErlangTuple newPlan = (OtpErlangTuple) t.elementAt(1);
+        if (newPlan.elementAt(0) instanceof OtpErlangAtom) {
+            // {error, insufficient_vnodes_available}
+            throw new IOException("no coverage plan: " + newPlan);
+        }
+        version = t.elementAt(0);
+        plan = newPlan;
+        log.info("coverage plan for ring %s computed in %d ms", version, lastRecomputeNanos / 1000000);
+        return plan;
+    }
+
+    // @doc drops the plan, e.g. when a split failed because of it
+    public synchronized void invalidate() {
+        plan = null;
+        version = null;
+    }
+
+    @Managed
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Managed
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Managed
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Managed
+    public synchronized long getLastRecomputeNanos() {
+        return lastRecomputeNanos;
+    }
+
+    @Managed
+    public synchronized long getTotalRecomputeNanos() {
+        return totalRecomputeNanos;
+    }
+}
@@ -17,21 +17,26 @@ package com.basho.riak.presto;
 import com.basho.riak.client.core.query.RiakObject;
 import com.basho.riak.presto.models.CoverageSplit;
 import com.basho.riak.presto.models.PRSubTable;
+import com.basho.riak.presto.models.PRTable;
 import com.basho.riak.presto.models.RiakColumnHandle;
 import com.ericsson.otp.erlang.*;
 import com.facebook.presto.spi.*;
 import com.facebook.presto.spi.type.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.jayway.jsonpath.JsonPath;
 import io.airlift.log.Logger;
 import io.airlift.slice.Slice;
 import io.airlift.slice.Slices;
-import org.apache.commons.codec.DecoderException;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,38 +54,53 @@ public class CoverageRecordCursor
     private final TupleDomain tupleDomain;
 
     private final SplitTask splitTask;
+    private final OtpErlangTuple indexQuery; // null to fold the vnode
     private final DirectConnection directConnection;
-    private final List<Map> buffer;
+    private final FoldOptions foldOptions;
+    private final Deque<Map> buffer;
     private final String[] fields;
     private final Slice[] slices;
     private final boolean[] has2i;
-    //private final Iterator<String> lines;
+    private final PRSubTable subtable;
+    private final ObjectMapper mapper = new ObjectMapper();
+    // fold of this split in Riak; null until the first advanceNextPosition()
+    private BatchStream stream;
+    private final Hedging hedging;
     private String pkey;
     private long totalBytes;
+    private long readTimeNanos;
     private Map<String, Object> cursor;
 
     public CoverageRecordCursor(
             CoverageSplit split,
+            PRTable table,
             List<RiakColumnHandle> columnHandles,//, InputSupplier<InputStream> inputStreamSupplier)
             TupleDomain tupleDomain,
-            DirectConnection directConnection)
-            throws OtpErlangDecodeException, DecoderException {
+            DirectConnection directConnection,
+            FoldOptions foldOptions,
+            Hedging hedging)
+            throws OtpErlangDecodeException {
 
         this.split = checkNotNull(split);
 
         //log.debug(columnHandles.toString());
         checkState(!columnHandles.isEmpty(), "Queries just with (*) cannot run anywhere");
         this.splitTask = split.getSplitTask();
+        this.indexQuery = split.getIndexQuery();
         this.tupleDomain = checkNotNull(tupleDomain, "tupleDomain is null");
         this.directConnection = checkNotNull(directConnection);
+        this.foldOptions = checkNotNull(foldOptions, "foldOptions is null");
+        this.hedging = checkNotNull(hedging, "hedging is null");
 
-        buffer = new ArrayList<Map>();
+        buffer = new ArrayDeque<Map>(foldOptions.getBatchCount());
         cursor = null;
+        stream = null;
         fields = new String[columnHandles.size()];
         slices = new Slice[columnHandles.size()];
         has2i = new boolean[columnHandles.size()];
 
         this.columnHandles = columnHandles;
+        this.subtable = table.getSubtable(split.getTableHandle().getTableName());
 
         //log.debug(columnHandles.toString());
         log.debug(tupleDomain.toString());
@@ -93,239 +113,237 @@ public class CoverageRecordCursor
                 pkey = columnHandle.getColumn().getName();
             }
         }
-        fetchData();
-    }
-
-    private void fetchData() {
         totalBytes = 0;
-        String tableName = split.getTableHandle().getTableName();
-        try {
-
-            String bucket = PRSubTable.bucketName(tableName);
-            log.info("accessing bucket %s for table %s", bucket, tableName);
-
-            DirectConnection conn = directConnection;
-
-            // TODO: if tupleDomain indicates there is a predicate and
-            //       the predicate matches to the 2i then fetch via 2i.
-            //       if the predicate is on __pkey then also use 2i with <<"key">>.
-
-            OtpErlangList objects = null;
-
-            if (tupleDomain.isAll()) {
-                log.info("using coverage query on %s, this may take a long time!!",
-                        split.getTableHandle().toString());
-                objects = splitTask.fetchAllData(conn,
-                        split.getTableHandle().getSchemaName(),
-                        bucket);
-
-            } else if (!tupleDomain.isNone()) {
-
-                OtpErlangTuple query = buildQuery();
-                log.info("2i query '%s' on %s", query, split.getTableHandle().toString());
-                if (query == null) {
-                    log.warn("there are no matching index btw %s and %s",
-                            columnHandles, tupleDomain);
-                    objects = splitTask.fetchAllData(conn,
-                            split.getTableHandle().getSchemaName(),
-                            bucket);
-                } else {
-
-                    objects = splitTask.fetchViaIndex(conn,
-                            split.getTableHandle().getSchemaName(), bucket, query);
-                }
-            }
-            for (OtpErlangObject o : objects) {
-
-                InternalRiakObject riakObject = new InternalRiakObject(o);
-                totalBytes += riakObject.getValueAsString().length();
-
-                PRSubTable subtable = split.getTable().getSubtable(tableName);
-                if (subtable != null) {
-                    try {
-                        // @doc depending on path and object structure, both Object and List may
-                        // match path expression and be returned here. This if is to handle both.
-                        Object records = JsonPath.read(riakObject.getValueAsString(), subtable.getPath());
-                        if (records instanceof Map) {
-                            //log.debug("instance of map; %s", records);
-                            handleObject((Map)records, riakObject);
-                        }
-                        else if (records instanceof List) {
-                            //log.debug("instance of list; %s", records);
-                            for (Map<String, Object> record : (List<Map<String, Object>>)records) {
-
-                                handleObject(record, riakObject);
-                            }
-                        }
-                    }catch (IllegalArgumentException e) {
-                        log.debug(e.getMessage() + " - JSONPath couldn't parse this string : " + riakObject.getValueAsString());
-                    }catch (com.jayway.jsonpath.PathNotFoundException e)
-                    {
-                        // A case where JsonPath returned Map
-                        //log.debug("JsonPath.read nothing from %s", riakObject.getValueAsString());
-                    }
-
-                } else {
-                    try {
-                        ObjectMapper mapper = new ObjectMapper();
-                        Map record = mapper.readValue(riakObject.getValueAsString(), HashMap.class);
-
-                        handleObject(record, riakObject);
-
-                        buffer.add(record);
-                    } catch (IOException e) {
-                        log.warn(e.getMessage());
-                    }
-                }
+        readTimeNanos = 0;
+    }
 
-            }
-            log.debug("%d key data fetched.", buffer.size());
+    // @doc starts the fold of this split in Riak, hedged and retried when
+    // enabled. Called lazily from advanceNextPosition(), so that creating a
+    // cursor costs nothing.
+    private BatchStream startStream()
+            throws IOException, OtpAuthException, OtpErlangExit {
+        BatchStream stream = startFold();
+        if (hedging.isEnabled() && splitTask.getKeys() == null) {
+            stream = new HedgedStream(stream, this::startAlternates, hedging, foldOptions.getRetryMaxKeys());
         }
-
-        catch (OtpErlangExit e) {
-            log.error(e);
-        } catch (OtpAuthException e) {
-            log.error(e);
-        } catch (OtpErlangDecodeException e) {
-            log.error(e);
+        if (foldOptions.getRetries() > 0) {
+            stream = new RetryingStream(stream, splitTask.getTask(), this::restart,
+                    foldOptions.getRetries(), foldOptions.getRetryBackoffMillis(),
+                    foldOptions.getRetryMaxKeys());
         }
+        return stream;
     }
 
-    private void handleObject(Map<String, Object> record, InternalRiakObject riakObject)
-    {
-        try {
-            //TODO: utilize hidden column with vtags
-            record.put(RiakColumnHandle.PKEY_COLUMN_NAME, new String(riakObject.getKey(), "UTF-8"));
-            record.put(RiakColumnHandle.VTAG_COLUMN_NAME, riakObject.getVTag());
-            buffer.add(record);
-        } catch (UnsupportedEncodingException e) {
-            log.warn(e.getMessage());
+    // @doc folds the keys of this split from other replicas, after
+    // resumeAfter; null if there are none
+    private BatchStream startAlternates(byte[] resumeAfter)
+            throws IOException, OtpAuthException, OtpErlangExit {
+        foldOptions.setResumeAfter(resumeAfter);
+        List<SplitTask> alternates = getAlternates();
+        if (alternates.isEmpty()) {
+            return null;
         }
-
-    }
-    @Override
-    public long getReadTimeNanos() {
-        return 0;
+        log.info("hedging %s with %s", splitTask.getTask(), alternates);
+        return foldAll(alternates);
     }
 
-    private OtpErlangTuple buildEqQuery(String field, OtpErlangObject value) {
-        OtpErlangObject[] t = {
-                new OtpErlangAtom("eq"),
-                new OtpErlangBinary(field.getBytes()),
-                value};
-        return new OtpErlangTuple(t);
+    // @doc folds this split again after a failure, from other replicas if
+    // there are any and else from the same vnode, after resumeAfter
+    private BatchStream restart(byte[] resumeAfter)
+            throws IOException, OtpAuthException, OtpErlangExit {
+        foldOptions.setResumeAfter(resumeAfter);
+        List<SplitTask> alternates = getAlternates();
+        if (alternates.isEmpty()) {
+            return startFold();
+        }
+        log.info("retrying %s with %s", splitTask.getTask(), alternates);
+        return foldAll(alternates);
     }
 
-    private OtpErlangTuple buildBinEqQuery(String field, Slice s) {
-        return buildEqQuery(field, new OtpErlangBinary(s.getBytes()));
+    private List<SplitTask> getAlternates()
+            throws IOException, OtpAuthException, OtpErlangExit {
+        return splitTask.getAlternates(directConnection,
+                split.getTableHandle().getSchemaName(),
+                PRSubTable.bucketName(split.getTableHandle().getTableName()));
     }
 
-    private OtpErlangTuple buildIntEqQuery(String field, Long l) {
-        return buildEqQuery(field, new OtpErlangLong(l));
+    private BatchStream foldAll(List<SplitTask> tasks) {
+        final String schemaName = split.getTableHandle().getSchemaName();
+        final String bucket = PRSubTable.bucketName(split.getTableHandle().getTableName());
+        return new FoldChain(tasks,
+                task -> task.startFold(directConnection, schemaName, bucket, foldOptions));
     }
 
-    // {range, Field, Start, End} or {eq, Field, Val} <- columnHandles and tupleDomain
-    private OtpErlangTuple buildQuery() //List<RiakColumnHandle> columnHandles,
-    {
-        // case where a='b'
-        Map<ColumnHandle, Comparable<?>> fixedValues = tupleDomain.extractFixedValues();
-        for (Map.Entry<ColumnHandle, Comparable<?>> fixedValue : fixedValues.entrySet()) {
-            log.debug("> %s (%s)", fixedValue, fixedValue.getClass());
-            log.debug(">> %s", fixedValue.getKey());
-
-            checkNotNull(fixedValue.getKey());
-            checkArgument(fixedValue.getKey() instanceof ColumnHandle);
-            checkArgument(fixedValue.getKey() instanceof RiakColumnHandle);
-
-            RiakColumnHandle c = (RiakColumnHandle) fixedValue.getKey();
-            if (c.getColumn().getPkey()) {
-                Slice s = (Slice) fixedValue.getValue();
-                return buildBinEqQuery("$key", s);
-            }
+    private FoldStream startFold()
+            throws IOException, OtpAuthException, OtpErlangExit {
+        String tableName = split.getTableHandle().getTableName();
+        String bucket = PRSubTable.bucketName(tableName);
+        log.info("accessing bucket %s for table %s", bucket, tableName);
 
-            for (RiakColumnHandle columnHandle : columnHandles) {
-                if (c.matchAndBothHasIndex(columnHandle)) {
-                    String field = null;
-
-                    if (columnHandle.getColumn().getType() == BigintType.BIGINT) {
-                        field = columnHandle.getColumn().getName() + "_int";
-                        log.debug(field);
-                        Long l = (Long) fixedValue.getValue();
-                        return buildIntEqQuery(field, l);
-                    } else if (columnHandle.getColumn().getType() == VarcharType.VARCHAR) {
-                        field = columnHandle.getColumn().getName() + "_bin";
-                        log.debug(field);
-                        Slice s = (Slice) fixedValue.getValue();
-                        return buildBinEqQuery(field, s);
-                    }
-                }
+        // TODO: if the predicate is on __pkey then also use 2i with <<"key">>.
+
+        if (tupleDomain.isAll()) {
+            log.info("using coverage query on %s, this may take a long time!!",
+                    split.getTableHandle().toString());
+        } else {
+            // picked by ScanPlanner for all splits of the query
+            if (indexQuery != null) {
+                log.debug("%s of %s: 2i query '%s'", split.getScan(), split.getTableHandle().toString(), indexQuery);
             }
+            foldOptions.setQuery(indexQuery);
         }
+        setProjection();
+        return splitTask.startFold(directConnection,
+                split.getTableHandle().getSchemaName(), bucket, foldOptions);
+    }
 
-        //case where a < b and ... blah
-        Map<RiakColumnHandle, Domain> map = tupleDomain.getDomains();
-        for (Map.Entry<RiakColumnHandle, Domain> entry : map.entrySet()) {
-            RiakColumnHandle c = entry.getKey();
-            Range span = entry.getValue().getRanges().getSpan();
-
-            if (c.getColumn().getPkey()) {
-                return buildBinRangeQuery("$key", span);
+    // @doc asks Riak to send only the columns of this query, of the rows
+    // matching its predicate, unless the subtable path is too complex to be
+    // evaluated there.
+    private void setProjection() {
+        List<String> path = null;
+        if (subtable != null) {
+            path = PRSubTable.pathSegments(subtable.getPath());
+            if (path == null) {
+                log.debug("path %s of %s can't be evaluated in Riak", subtable.getPath(), subtable);
+                return;
             }
+        }
+        List<String> projected = new ArrayList<>();
+        for (String field : fields) {
+            if (!field.equals(RiakColumnHandle.PKEY_COLUMN_NAME) &&
+                    !field.equals(RiakColumnHandle.VTAG_COLUMN_NAME)) {
+                projected.add(field);
+            }
+        }
+        List<String> indexOnly = subtable == null ? indexOnlyFields(projected) : null;
+        if (indexOnly == null && indexQuery == null && subtable == null && projected.isEmpty()
+                && !Arrays.asList(fields).contains(RiakColumnHandle.VTAG_COLUMN_NAME)) {
+            // nothing but keys: enumerate them from the $bucket index
+            // instead of reading every value; ldna folds the vnode after
+            // all if its backend has no indexes
+            foldOptions.setQuery(IndexQuery.bucketKeys(PRSubTable.bucketName(split.getTableHandle().getTableName())));
+            indexOnly = projected;
+            log.info("keys of %s from the $bucket index", split.getTableHandle().toString());
+        }
+        foldOptions.setProjection(projected, path)
+                .setFilter(FoldFilter.encode(tupleDomain))
+                .setIndexOnly(indexOnly);
+    }
 
-            for (RiakColumnHandle columnHandle : columnHandles) {
-                if (c.matchAndBothHasIndex(columnHandle)) {
-                    String field = null;
-                    //log.debug("value:%s, range:%s, span:%s",
-                    //        entry.getValue(), entry.getValue().getRanges(),span);
-                    //log.debug("min: %s max:%s", span.getLow(), span.getHigh());
-                    if (columnHandle.getColumn().getType() == BigintType.BIGINT) {
-                        field = columnHandle.getColumn().getName() + "_int";
-                        return buildIntRangeQuery(field, span);
-
-                    } else if (columnHandle.getColumn().getType() == VarcharType.VARCHAR) {
-                        field = columnHandle.getColumn().getName() + "_bin";
-                        return buildBinRangeQuery(field, span);
-
-                    }
+    // @doc the projected fields when the index of the query holds all of
+    // them, so that Riak can answer it without reading the objects; null
+    // otherwise. __vtag is only in the objects.
+    private List<String> indexOnlyFields(List<String> projected) {
+        if (indexQuery == null || indexQuery.elementAt(0).equals(new OtpErlangAtom("intersect"))
+                || Arrays.asList(fields).contains(RiakColumnHandle.VTAG_COLUMN_NAME)) {
+            return null;
+        }
+        OtpErlangObject field = IndexQuery.field(indexQuery);
+        for (String name : projected) {
+            String indexField = null;
+            for (RiakColumnHandle handle : columnHandles) {
+                if (handle.getColumn().getName().equals(name)) {
+                    indexField = IndexQuery.indexField(handle.getColumn());
                 }
             }
+            if (indexField == null ||
+                    !field.equals(new OtpErlangBinary(indexField.getBytes(StandardCharsets.UTF_8)))) {
+                return null;
+            }
         }
-        return null;
+        return projected;
     }
 
-    private OtpErlangTuple buildIntRangeQuery(String field, Range span) {
-        // NOTE: Both Erlang and JSON can express smaller integer than Long.MIN_VALUE
-        Long l = Long.MIN_VALUE;
-        if (!span.getLow().isLowerUnbounded()) {
-            l = (Long) span.getLow().getValue();
+    // @doc decodes the next batch sent by Riak into the buffer.
+    // returns false when all objects of the split have been consumed.
+    private boolean fetchNextChunk() {
+        if (tupleDomain.isNone() || (stream != null && stream.isDone())) {
+            return false;
+        }
+        long start = System.nanoTime();
+        OtpErlangList objects;
+        try {
+            if (stream == null) {
+                stream = startStream();
+            }
+            objects = stream.next();
+        } catch (IOException | OtpAuthException | OtpErlangExit e) {
+            log.error("fold of %s failed: %s", split.getTableHandle(), e);
+            throw Throwables.propagate(e);
+        } finally {
+            readTimeNanos += System.nanoTime() - start;
+        }
+        if (objects == null) {
+            return false;
         }
-        // NOTE: Both Erlang and JSON can express greater integer lang Long.MAX_VALUE
-        Long r = Long.MAX_VALUE;
-        if (!span.getHigh().isUpperUnbounded()) {
-            r = (Long) span.getHigh().getValue();
+        for (OtpErlangObject o : objects) {
+            decodeObject(o);
         }
-        return buildRangeQuery(field, new OtpErlangLong(l), new OtpErlangLong(r));
+        //log.debug("%d records buffered.", buffer.size());
+        return true;
     }
 
-    private OtpErlangTuple buildBinRangeQuery(String field, Range span) {
-        byte[] from = {0};
-        if (!span.getLow().isLowerUnbounded()) {
-            from = ((String) span.getLow().getValue()).getBytes();
+    private void decodeObject(OtpErlangObject o) {
+        if (ProjectedRiakObject.isProjected(o)) {
+            ProjectedRiakObject projected = new ProjectedRiakObject(o);
+            totalBytes += projected.getBytes();
+            for (Map<String, Object> record : projected.getRows()) {
+                handleObject(record, projected.getKey(), projected.getVTag());
+            }
+            return;
         }
-        Byte m2 = Byte.MAX_VALUE;
-        byte[] to = {m2};
-        if (!span.getHigh().isUpperUnbounded()) {
-            to = ((String) span.getHigh().getValue()).getBytes();
+        InternalRiakObject riakObject = new InternalRiakObject(o);
+        totalBytes += riakObject.getValue().length;
+
+        if (subtable != null) {
+            try {
+                // @doc depending on path and object structure, both Object and List may
+                // match path expression and be returned here. This if is to handle both.
+                Object records = JsonPath.read(riakObject.getValueAsString(), subtable.getPath());
+                if (records instanceof Map) {
+                    //log.debug("instance of map; %s", records);
+                    handleObject((Map) records, riakObject.getKey(), riakObject.getVTag());
+                } else if (records instanceof List) {
+                    //log.debug("instance of list; %s", records);
+                    for (Map<String, Object> record : (List<Map<String, Object>>) records) {
+
+                        handleObject(record, riakObject.getKey(), riakObject.getVTag());
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                log.debug(e.getMessage() + " - JSONPath couldn't parse this string : " + riakObject.getValueAsString());
+            } catch (com.jayway.jsonpath.PathNotFoundException e) {
+                // A case where JsonPath returned Map
+                //log.debug("JsonPath.read nothing from %s", riakObject.getValueAsString());
+            }
+
+        } else {
+            try {
+                Map record = mapper.readValue(riakObject.getValue(), HashMap.class);
+
+                handleObject(record, riakObject.getKey(), riakObject.getVTag());
+            } catch (IOException e) {
+                log.warn(e.getMessage());
+            }
         }
-        return buildRangeQuery(field, new OtpErlangBinary(from), new OtpErlangBinary(to));
     }
 
-    private OtpErlangTuple buildRangeQuery(String field, OtpErlangObject from, OtpErlangObject to) {
-        OtpErlangObject[] t = {
-                new OtpErlangAtom("range"),
-                new OtpErlangBinary(field.getBytes()),
-                from, to};
-        return new OtpErlangTuple(t);
+    private void handleObject(Map<String, Object> record, byte[] key, String vtag)
+    {
+        try {
+            //TODO: utilize hidden column with vtags
+            record.put(RiakColumnHandle.PKEY_COLUMN_NAME, new String(key, "UTF-8"));
+            record.put(RiakColumnHandle.VTAG_COLUMN_NAME, vtag);
+            buffer.add(record);
+        } catch (UnsupportedEncodingException e) {
+            log.warn(e.getMessage());
+        }
+
+    }
+    @Override
+    public long getReadTimeNanos() {
+        return readTimeNanos;
     }
 
     @Override
@@ -348,16 +366,23 @@ public class CoverageRecordCursor
     @Override
     public boolean advanceNextPosition() {
         //log.debug("buffer length> %d", buffer.size());
-        if (buffer.isEmpty()) {
-            return false;
+        while (buffer.isEmpty()) {
+            if (!fetchNextChunk()) {
+                return false;
+            }
         }
 
-        Map riakObject = buffer.remove(0);
-
-        cursor = riakObject;
+        cursor = buffer.poll();
         return true;
     }
 
+    // @doc the record at the current position, as decoded from Riak;
+    // CoveragePageSource reads it directly instead of cell by cell.
+    Map<String, Object> getRecord() {
+        checkState(cursor != null, "Cursor has not been advanced yet");
+        return cursor;
+    }
+
     private String getFieldValue(int field) {
         checkState(fields != null, "Cursor has not been advanced yet");
 
@@ -411,5 +436,10 @@ public class CoverageRecordCursor
 
     @Override
     public void close() {
+        buffer.clear();
+        if (stream != null) {
+            // Presto may close before reading everything, e.g. on LIMIT
+            stream.close();
+        }
     }
 }
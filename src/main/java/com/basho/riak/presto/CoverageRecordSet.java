@@ -15,6 +15,7 @@
 package com.basho.riak.presto;
 
 import com.basho.riak.presto.models.CoverageSplit;
+import com.basho.riak.presto.models.PRTable;
 import com.basho.riak.presto.models.RiakColumnHandle;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.facebook.presto.spi.ColumnHandle;
@@ -24,7 +25,6 @@ import com.facebook.presto.spi.TupleDomain;
 import com.facebook.presto.spi.type.Type;
 import com.google.common.collect.ImmutableList;
 import io.airlift.log.Logger;
-import org.apache.commons.codec.DecoderException;
 
 import java.util.List;
 
@@ -37,18 +37,24 @@ public class CoverageRecordSet
         implements RecordSet {
     private static final Logger log = Logger.get(CoverageRecordSet.class);
     private final CoverageSplit split;
+    private final PRTable table;
     private final List<RiakColumnHandle> columnHandles;
     private final List<Type> types;
     private final TupleDomain<ColumnHandle> tupleDomain;
     private final DirectConnection directConnection;
+    private final RiakConfig riakConfig;
+    private final Hedging hedging;
 
 
     public CoverageRecordSet(CoverageSplit split,
+                             PRTable table,
                              List<RiakColumnHandle> columnHandles,
                              RiakConfig riakConfig,
                              TupleDomain<ColumnHandle> tupleDomain,
-                             DirectConnection directConnection) {
+                             DirectConnection directConnection,
+                             Hedging hedging) {
         this.split = checkNotNull(split, "split is null");
+        this.table = checkNotNull(table, "table is null");
         this.columnHandles = checkNotNull(columnHandles, "column handles is null");
 
 
@@ -59,6 +65,8 @@ public class CoverageRecordSet
         this.types = types.build();
         this.tupleDomain = checkNotNull(tupleDomain);
         this.directConnection = checkNotNull(directConnection);
+        this.riakConfig = checkNotNull(riakConfig, "riakConfig is null");
+        this.hedging = checkNotNull(hedging, "hedging is null");
     }
 
     @Override
@@ -70,13 +78,13 @@ public class CoverageRecordSet
     public RecordCursor cursor() {
         try {
             return new CoverageRecordCursor(
-                    split,
+                    split, table,
                     columnHandles, tupleDomain,
-                    directConnection);
+                    directConnection,
+                    FoldOptions.fromConfig(riakConfig),
+                    hedging);
         } catch (OtpErlangDecodeException e) {
             log.error(e.getMessage());
-        } catch (DecoderException e) {
-            log.error(e.getMessage());
         }
         return null;
     }
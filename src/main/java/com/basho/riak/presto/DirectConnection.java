@@ -18,41 +18,107 @@ package com.basho.riak.presto;
 // or 1.5.6 on maven repo.
 
 import com.ericsson.otp.erlang.*;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.weakref.jmx.Managed;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
 
 // @doc directly connect to Riak via distributed Erlang.
+// All calls share one Erlang node and mailbox: each one is sent to rex on
+// the Riak node as a gen_server call tagged with a reference of its own, and
+// a reader thread completes the future of the call when the reply with that
+// reference arrives, so any number of calls can be in flight over one link.
+// Calls about a vnode or a fold go to the node that holds it, the others to
+// riak.erlang.node. Up to riak.erlang.max-pending-calls are in flight per
+// node, others wait for their turn up to riak.erlang.call-wait-ms, see
+// CallLimiter, and then as long again for the reply. The next_batch calls
+// of folds are not counted: there is one per running split at most, and
+// Presto already bounds those, while counting them would let as many
+// splits on one node as there are turns starve every other call to it.
 public class DirectConnection {
+    private static final Logger log = Logger.get(DirectConnection.class);
+    private static final long RECEIVE_TIMEOUT = 1000;
+
     private String peer;
     private String cookie;
-    private OtpSelf self;
-    private OtpPeer other;
-    private OtpConnection conn;
+    private final OtpNode self;
+    private final OtpMbox mbox;
     private OtpErlangObject local_client;
+    private final ConcurrentMap<OtpErlangRef, PendingCall> pending = new ConcurrentHashMap<>();
+    private final CallLimiter limiter;
+    private volatile boolean closed = false;
+    private final long replyMillis;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong replyTimeouts = new AtomicLong();
 
     @Inject
     public DirectConnection(RiakConfig riakConfig)
             throws IOException, OtpAuthException {
-        this.cookie = riakConfig.getErlangCookie();
-        this.self = new OtpSelf(riakConfig.getErlangNodeName(), cookie);
+        this(riakConfig.getErlangNodeName(), riakConfig.getErlangCookie(),
+                riakConfig.getErlangMaxPendingCalls(), riakConfig.getErlangCallWaitMillis());
         this.peer = riakConfig.getLocalNode();
-
-        this.other = new OtpPeer(this.peer);
-        this.conn = self.connect(other);
+        // fail early on a wrong node name or cookie
+        if (!self.ping(peer, RECEIVE_TIMEOUT * 5)) {
+            throw new IOException("cannot connect to " + peer + " as " + self.node());
+        }
     }
 
     public DirectConnection(String self, String cookie) throws java.io.IOException {
-        this.self = new OtpSelf(self, cookie);
+        this(self, cookie, 64, Long.MAX_VALUE);
+    }
+
+    private DirectConnection(String name, String cookie, int maxPendingCalls, long waitMillis)
+            throws IOException {
         this.cookie = cookie;
-        //this.self = new OtpSelf(peer, cookie);
+        this.self = new OtpNode(name, cookie);
+        this.mbox = self.createMbox();
+        this.limiter = new CallLimiter(maxPendingCalls, waitMillis);
+        this.replyMillis = waitMillis;
+        self.registerStatusHandler(new OtpNodeStatus() {
+            @Override
+            public void remoteStatus(String node, boolean up, Object info) {
+                if (!up) {
+                    failPendingCalls(node, info);
+                }
+            }
+
+            // mbox.send() drops the message silently when it can't connect
+            @Override
+            public void connAttempt(String node, boolean incoming, Object info) {
+                if (!incoming) {
+                    failPendingCalls(node, info);
+                }
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveReplies();
+            }
+        }, "riak-rpc-" + name);
+        reader.setDaemon(true);
+        reader.start();
     }
 
     // there are no disconnect.
     public void connect(String other) throws java.io.IOException, OtpAuthException, OtpErlangExit {
         this.peer = other;
-        this.other = new OtpPeer(other);
-        this.conn = self.connect(this.other);
+        if (!self.ping(other, RECEIVE_TIMEOUT * 5)) {
+            throw new IOException("cannot connect to " + other + " as " + self.node());
+        }
     }
 
     public void ping() throws java.io.IOException, OtpAuthException, OtpErlangExit {
@@ -68,11 +134,170 @@ public class DirectConnection {
 
     }
 
-    private synchronized <T> T call(String module, String function, OtpErlangList argv)
+    private <T> T call(String module, String function, OtpErlangList argv)
             throws IOException, OtpErlangExit, OtpAuthException {
-        conn.sendRPC(module, function, argv);
-        OtpErlangObject result = conn.receiveRPC();
-        return (T) result;
+        return (T) await(callAsync(module, function, argv));
+    }
+
+    // @doc waits for the reply of callAsync(), up to riak.erlang.call-wait-ms;
+    // then the call fails, and a late reply is dropped.
+    public OtpErlangObject await(CompletableFuture<OtpErlangObject> reply)
+            throws IOException {
+        try {
+            return reply.get(replyMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for Riak", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (TimeoutException e) {
+            replyTimeouts.incrementAndGet();
+            // gives back the turn and forgets the reference, see send()
+            reply.completeExceptionally(new IOException("no reply from Riak in " + replyMillis + " ms"));
+            return await(reply);
+        }
+    }
+
+    // @doc rpc:call/4 to the Riak node without waiting for the reply;
+    // {badrpc, Reason} completes the future like any other reply.
+    public CompletableFuture<OtpErlangObject> callAsync(String module, String function, OtpErlangList argv)
+            throws IOException {
+        checkState(peer != null, "not connected to Riak");
+        return callAsync(peer, module, function, argv);
+    }
+
+    // @doc same as above on any node of the cluster, which is connected
+    // to on first use.
+    public CompletableFuture<OtpErlangObject> callAsync(String node, String module, String function,
+                                                        OtpErlangList argv)
+            throws IOException {
+        limiter.acquire(node);
+        return send(node, module, function, argv, true);
+    }
+
+    private CompletableFuture<OtpErlangObject> send(String node, String module, String function,
+                                                    OtpErlangList argv, boolean limited) {
+        PendingCall call = new PendingCall(node);
+        OtpErlangRef ref = self.createRef();
+        pending.put(ref, call);
+        call.future.whenComplete((reply, error) -> {
+            pending.remove(ref, call);
+            if (limited) {
+                limiter.release(node);
+            }
+        });
+        calls.incrementAndGet();
+
+        // {'$gen_call', {Self, Ref}, {call, M, F, A, user}} as rpc:call/4 sends,
+        // answered by {Ref, Reply}
+        OtpErlangObject[] request = {new OtpErlangAtom("call"),
+                new OtpErlangAtom(module), new OtpErlangAtom(function), argv,
+                new OtpErlangAtom("user")};
+        OtpErlangObject[] from = {mbox.self(), ref};
+        OtpErlangObject[] msg = {new OtpErlangAtom("$gen_call"),
+                new OtpErlangTuple(from), new OtpErlangTuple(request)};
+        mbox.send("rex", node, new OtpErlangTuple(msg));
+        return call.future;
+    }
+
+    private void receiveReplies() {
+        while (!closed) {
+            OtpErlangObject msg;
+            try {
+                msg = mbox.receive(RECEIVE_TIMEOUT);
+            } catch (OtpErlangExit | OtpErlangDecodeException e) {
+                log.warn("dropped a message from Riak: %s", e);
+                continue;
+            }
+            if (msg == null) {
+                continue;
+            }
+            // {Ref, Reply}
+            if (msg instanceof OtpErlangTuple && ((OtpErlangTuple) msg).arity() == 2 &&
+                    ((OtpErlangTuple) msg).elementAt(0) instanceof OtpErlangRef) {
+                OtpErlangTuple t = (OtpErlangTuple) msg;
+                PendingCall call = pending.remove(t.elementAt(0));
+                if (call != null) {
+                    call.future.complete(t.elementAt(1));
+                    continue;
+                }
+            }
+            log.debug("unexpected message: %s", msg);
+        }
+    }
+
+    private void failPendingCalls(String node, Object info) {
+        log.warn("connection to %s lost: %s", node, info);
+        for (Map.Entry<OtpErlangRef, PendingCall> e : pending.entrySet()) {
+            if (e.getValue().node.equals(node) && pending.remove(e.getKey(), e.getValue())) {
+                e.getValue().future.completeExceptionally(
+                        new IOException("connection to " + node + " lost: " + info));
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        for (PendingCall call : pending.values()) {
+            call.future.completeExceptionally(new IOException("connection closed"));
+        }
+        pending.clear();
+        mbox.close();
+        self.close();
+    }
+
+    @Managed
+    public int getMaxPendingCalls() {
+        return limiter.getMaxPendingCalls();
+    }
+
+    // @doc calls sent and not yet replied
+    @Managed
+    public int getPendingCalls() {
+        return pending.size();
+    }
+
+    @Managed
+    public long getCalls() {
+        return calls.get();
+    }
+
+    // @doc callers waiting for their turn right now
+    @Managed
+    public int getWaiters() {
+        return limiter.getWaiters();
+    }
+
+    // @doc how many calls had to wait for their turn, and for how long in total
+    @Managed
+    public long getWaitCount() {
+        return limiter.getWaitCount();
+    }
+
+    @Managed
+    public long getWaitTimeNanos() {
+        return limiter.getWaitTimeNanos();
+    }
+
+    @Managed
+    public long getWaitTimeouts() {
+        return limiter.getWaitTimeouts();
+    }
+
+    // @doc calls that got no reply in time
+    @Managed
+    public long getReplyTimeouts() {
+        return replyTimeouts.get();
+    }
+
+    private static class PendingCall {
+        private final String node;
+        private final CompletableFuture<OtpErlangObject> future = new CompletableFuture<>();
+
+        PendingCall(String node) {
+            this.node = node;
+        }
     }
 
     public void get(byte[] b, byte[] k)
@@ -118,6 +343,60 @@ public class DirectConnection {
         return this.call("ldna", "get_coverage_plan", new OtpErlangList(argv));
     }
 
+    // {RingVersion, Plan}
+    public OtpErlangTuple getVersionedCoveragePlan(int reqid)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] argv = {new OtpErlangLong(reqid)};
+        return this.call("ldna", "versioned_coverage_plan", new OtpErlangList(argv));
+    }
+
+    // {RingVersion, Plan} with replicas picked by the load of Riak nodes
+    public OtpErlangTuple getBalancedCoveragePlan(int reqid)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] argv = {new OtpErlangLong(reqid)};
+        return this.call("ldna", "balanced_coverage_plan", new OtpErlangList(argv));
+    }
+
+    // [{AltVNode, AltFilterVNodes}] holding the keys of a vnode of a plan
+    public OtpErlangList alternates(OtpErlangTuple vnode, OtpErlangList filterVnodes)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] argv = {vnode, filterVnodes};
+        return this.call("ldna", "alternates", new OtpErlangList(argv));
+    }
+
+    // [{VNode, Keys}], keys grouped by the vnode to get them from
+    public OtpErlangList keyOwners(byte[] bucketType, byte[] bucket, List<byte[]> keys)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
+        OtpErlangObject[] k = new OtpErlangObject[keys.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = new OtpErlangBinary(keys.get(i));
+        }
+        OtpErlangObject[] argv = {new OtpErlangTuple(bt), new OtpErlangList(k)};
+        OtpErlangObject result = call("ldna", "key_owners", new OtpErlangList(argv));
+        if (!(result instanceof OtpErlangList)) {
+            // {error, {no_owner, Key}} when no vnode holding a key is up,
+            // or {badrpc, Reason}
+            throw new IOException("ldna:key_owners failed: " + result);
+        }
+        return (OtpErlangList) result;
+    }
+
+    // [{AltVNode, Keys}], keys of a point lookup on vnode grouped by the
+    // vnode on another node to get them from, or [] if some have none
+    public OtpErlangList keyAlternates(byte[] bucketType, byte[] bucket, OtpErlangTuple vnode,
+                                       OtpErlangList keys)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
+        OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, keys};
+        return this.call("ldna", "key_alternates", new OtpErlangList(argv));
+    }
+
+    public OtpErlangObject getRingVersion()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        return this.call("ldna", "ring_version", new OtpErlangList());
+    }
+
     public OtpErlangList processSplits(byte[] bucketType, byte[] bucket, OtpErlangTuple nodeSplits)
             throws java.io.IOException, OtpErlangExit, OtpAuthException {
         OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
@@ -130,7 +409,7 @@ public class DirectConnection {
             throws java.io.IOException, OtpErlangExit, OtpAuthException {
         OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
         OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, filterVnodes};
-        return this.call("ldna", "process_split", new OtpErlangList(argv));
+        return (OtpErlangList) await(callAsync(nodeOf(vnode), "ldna", "process_split", new OtpErlangList(argv)));
     }
 
     // index : in Riak it's foobar_int, foobar_bin but this is just a column name
@@ -140,9 +419,85 @@ public class DirectConnection {
             throws java.io.IOException, OtpErlangExit, OtpAuthException {
         OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
         OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, filterVnodes, query};
-        return this.call("ldna", "process_split", new OtpErlangList(argv));
+        return (OtpErlangTuple) await(callAsync(nodeOf(vnode), "ldna", "process_split", new OtpErlangList(argv)));
     }
 
+    // {Total, Capped, [Count]}: keys of the bucket in a vnode of a plan,
+    // and of those the ones each query matches, counted up to max; the
+    // total is counted until folding costs more than fetching the fewest
+    // keys a query matches at keyCost each, see ldna:index_counts/6
+    public OtpErlangTuple indexCounts(byte[] bucketType, byte[] bucket, OtpErlangTuple vnode,
+                                      OtpErlangList filterVnodes, List<OtpErlangTuple> queries, long max,
+                                      double keyCost)
+            throws java.io.IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
+        OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, filterVnodes,
+                new OtpErlangList(queries.toArray(new OtpErlangObject[queries.size()])),
+                new OtpErlangLong(max), new OtpErlangDouble(keyCost)};
+        OtpErlangObject result = await(callAsync(nodeOf(vnode), "ldna", "index_counts", new OtpErlangList(argv)));
+        if (!(result instanceof OtpErlangTuple) || ((OtpErlangTuple) result).arity() != 3
+                || !(((OtpErlangTuple) result).elementAt(2) instanceof OtpErlangList)) {
+            // {badrpc, Reason}, e.g. when the backend has no 2i
+            throw new IOException("ldna:index_counts failed: " + result);
+        }
+        return (OtpErlangTuple) result;
+    }
+
+    // {Complete, [{Low, High, Entries, Distinct}]}: ldna:index_histogram/6 of
+    // a field on one vnode, reading at most max index entries
+    public OtpErlangTuple indexHistogram(byte[] bucketType, byte[] bucket, OtpErlangTuple vnode,
+                                         OtpErlangList filterVnodes, OtpErlangObject field, long max,
+                                         int buckets)
+            throws java.io.IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
+        OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, filterVnodes, field,
+                new OtpErlangLong(max), new OtpErlangLong(buckets)};
+        OtpErlangObject result = await(callAsync(nodeOf(vnode), "ldna", "index_histogram", new OtpErlangList(argv)));
+        if (!(result instanceof OtpErlangTuple) || ((OtpErlangTuple) result).arity() != 2
+                || !(((OtpErlangTuple) result).elementAt(1) instanceof OtpErlangList)) {
+            // {badrpc, Reason}, e.g. when the backend has no 2i
+            throw new IOException("ldna:index_histogram failed: " + result);
+        }
+        return (OtpErlangTuple) result;
+    }
+
+    // starts a fold over a split in Riak; its objects are read in batches by nextBatch()
+    public OtpErlangPid startFold(byte[] bucketType, byte[] bucket, OtpErlangTuple vnode,
+                                  OtpErlangList filterVnodes, OtpErlangList options)
+            throws java.io.IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] bt = {new OtpErlangBinary(bucketType), new OtpErlangBinary(bucket)};
+        OtpErlangObject[] argv = {new OtpErlangTuple(bt), vnode, filterVnodes, options};
+        OtpErlangObject result = await(callAsync(nodeOf(vnode), "ldna", "start_fold", new OtpErlangList(argv)));
+        // {ok, Pid}, or {badrpc, Reason} if ldna.beam is not installed on that node
+        OtpErlangTuple t = (OtpErlangTuple) result;
+        if (!(t.elementAt(1) instanceof OtpErlangPid)) {
+            throw new IOException("ldna:start_fold failed: " + result);
+        }
+        return (OtpErlangPid) t.elementAt(1);
+    }
+
+    // {ok, Objects} | {done, Objects} | not_ready | {error, Reason}
+    public OtpErlangObject nextBatch(OtpErlangPid fold)
+            throws java.io.IOException, OtpErlangExit, OtpAuthException {
+        return await(nextBatchAsync(fold));
+    }
+
+    // not counted against riak.erlang.max-pending-calls, see above
+    public CompletableFuture<OtpErlangObject> nextBatchAsync(OtpErlangPid fold) {
+        OtpErlangObject[] argv = {fold};
+        return send(fold.node(), "ldna", "next_batch", new OtpErlangList(argv), false);
+    }
+
+    public void cancelFold(OtpErlangPid fold)
+            throws java.io.IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangObject[] argv = {fold};
+        await(callAsync(fold.node(), "ldna", "cancel_fold", new OtpErlangList(argv)));
+    }
+
+    // {Index, Node} -> Node
+    private static String nodeOf(OtpErlangTuple vnode) {
+        return ((OtpErlangAtom) vnode.elementAt(1)).atomValue();
+    }
 
     // vnode, bucket -> [riak_object()]
     public OtpErlangObject fetchVNodeData(OtpErlangObject vnode,
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpAuthException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc reads the folds of several splits one after another, like the
+// alternates of a split which together hold the keys of its vnode. Each
+// fold is started when the one before has finished.
+public class FoldChain implements BatchStream {
+
+    public interface Starter {
+        FoldStream start(SplitTask task)
+                throws IOException, OtpErlangExit, OtpAuthException;
+    }
+
+    private final Deque<SplitTask> tasks;
+    private final Starter starter;
+    private volatile FoldStream current;
+    private volatile boolean closed;
+
+    public FoldChain(List<SplitTask> tasks, Starter starter) {
+        this.tasks = new ArrayDeque<>(checkNotNull(tasks, "tasks is null"));
+        this.starter = checkNotNull(starter, "starter is null");
+    }
+
+    @Override
+    public OtpErlangList next()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        while (!closed) {
+            if (current == null || current.isDone()) {
+                if (tasks.isEmpty()) {
+                    return null;
+                }
+                current = starter.start(tasks.poll());
+            }
+            OtpErlangList batch = current.next();
+            if (batch != null) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isDone() {
+        return closed || (tasks.isEmpty() && (current == null || current.isDone()));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        FoldStream fold = current;
+        if (fold != null) {
+            fold.close();
+        }
+    }
+}
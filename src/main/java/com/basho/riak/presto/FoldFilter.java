@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.RiakColumnHandle;
+import com.ericsson.otp.erlang.*;
+import com.facebook.presto.spi.Domain;
+import com.facebook.presto.spi.Marker;
+import com.facebook.presto.spi.Range;
+import com.facebook.presto.spi.TupleDomain;
+import com.facebook.presto.spi.type.BigintType;
+import com.facebook.presto.spi.type.BooleanType;
+import com.facebook.presto.spi.type.DoubleType;
+import com.facebook.presto.spi.type.Type;
+import com.facebook.presto.spi.type.VarcharType;
+import io.airlift.slice.Slice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// @doc translates a TupleDomain into the {filter, ...} option of
+// ldna:start_fold/4, which drops non-matching rows inside the vnode fold:
+//   [{Field, NullAllowed, [{eq, V} | {range, Low, High}]}]
+// where Low and High are unbounded, {inclusive, V} or {exclusive, V}.
+// All conjuncts must hold. Presto still applies the predicate to what
+// comes back, so the fold only has to never drop a matching row.
+public class FoldFilter {
+
+    private FoldFilter() {
+    }
+
+    // @doc returns null when there is nothing to evaluate in Riak
+    public static OtpErlangList encode(TupleDomain tupleDomain) {
+        if (tupleDomain.isAll() || tupleDomain.isNone()) {
+            return null;
+        }
+        List<OtpErlangObject> conjuncts = new ArrayList<>();
+        Map<RiakColumnHandle, Domain> domains = tupleDomain.getDomains();
+        for (Map.Entry<RiakColumnHandle, Domain> entry : domains.entrySet()) {
+            OtpErlangTuple conjunct = encode(entry.getKey(), entry.getValue());
+            if (conjunct != null) {
+                conjuncts.add(conjunct);
+            }
+        }
+        if (conjuncts.isEmpty()) {
+            return null;
+        }
+        return new OtpErlangList(conjuncts.toArray(new OtpErlangObject[conjuncts.size()]));
+    }
+
+    private static OtpErlangTuple encode(RiakColumnHandle column, Domain domain) {
+        String name = column.getColumn().getName();
+        if (domain.isAll() ||
+                name.equals(RiakColumnHandle.PKEY_COLUMN_NAME) ||
+                name.equals(RiakColumnHandle.VTAG_COLUMN_NAME) ||
+                !isSupported(column.getColumn().getType())) {
+            return null;
+        }
+        List<OtpErlangObject> ranges = new ArrayList<>();
+        for (Range range : domain.getRanges()) {
+            if (range.isSingleValue()) {
+                OtpErlangObject[] eq = {new OtpErlangAtom("eq"), toErlang(range.getSingleValue())};
+                ranges.add(new OtpErlangTuple(eq));
+            } else {
+                OtpErlangObject[] r = {new OtpErlangAtom("range"),
+                        bound(range.getLow(), range.getLow().isLowerUnbounded()),
+                        bound(range.getHigh(), range.getHigh().isUpperUnbounded())};
+                ranges.add(new OtpErlangTuple(r));
+            }
+        }
+        OtpErlangObject[] t = {
+                new OtpErlangBinary(name.getBytes(StandardCharsets.UTF_8)),
+                new OtpErlangAtom(domain.isNullAllowed()),
+                new OtpErlangList(ranges.toArray(new OtpErlangObject[ranges.size()]))};
+        return new OtpErlangTuple(t);
+    }
+
+    private static boolean isSupported(Type type) {
+        return type == BigintType.BIGINT || type == VarcharType.VARCHAR ||
+                type == DoubleType.DOUBLE || type == BooleanType.BOOLEAN;
+    }
+
+    // ABOVE on the low side and BELOW on the high side exclude the value
+    private static OtpErlangObject bound(Marker marker, boolean unbounded) {
+        if (unbounded) {
+            return new OtpErlangAtom("unbounded");
+        }
+        OtpErlangObject[] t = {
+                new OtpErlangAtom(marker.getBound() == Marker.Bound.EXACTLY ? "inclusive" : "exclusive"),
+                toErlang(marker.getValue())};
+        return new OtpErlangTuple(t);
+    }
+
+    private static OtpErlangObject toErlang(Comparable<?> value) {
+        if (value instanceof Long) {
+            return new OtpErlangLong((Long) value);
+        } else if (value instanceof Double) {
+            return new OtpErlangDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            return new OtpErlangAtom((Boolean) value);
+        } else if (value instanceof Slice) {
+            return new OtpErlangBinary(((Slice) value).getBytes());
+        }
+        return new OtpErlangBinary(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
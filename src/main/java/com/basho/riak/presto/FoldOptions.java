@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc options of ldna:start_fold/4, sent as an Erlang proplist.
+public class FoldOptions {
+    private int batchCount = 1000;
+    private long batchBytes = 4 * 1024 * 1024;
+    private int getWindow = 32;
+    private int firstBatchCount = 0; // 0 for batchCount
+    private OtpErlangTuple query = null; // {eq, Field, Val} or {range, Field, Start, End}
+    private List<String> indexOnly = null;
+    private List<String> fields = null;
+    private List<String> path = null;
+    private OtpErlangList filter = null;
+    private OtpErlangList keys = null;
+    private int sliceIndex = 0;
+    private int sliceCount = 1;
+    private byte[] resumeAfter = null;
+    // not sent to Riak: how often a failed fold is retried, see RetryingStream
+    private int retries = 0;
+    private long retryBackoffMillis = 500;
+    private int retryMaxKeys = 100000;
+
+    // @doc options with the batch sizes configured for scans
+    public static FoldOptions fromConfig(RiakConfig config) {
+        return new FoldOptions()
+                .setBatchCount(config.getScanBatchSize())
+                .setBatchBytes(config.getScanBatchBytes())
+                .setGetWindow(config.getScanGetWindow())
+                .setFirstBatchCount(config.getScanFirstBatchSize())
+                .setRetries(config.getScanRetries(), config.getScanRetryBackoffMillis())
+                .setRetryMaxKeys(config.getScanRetryMaxKeys());
+    }
+
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    public FoldOptions setBatchCount(int batchCount) {
+        checkArgument(batchCount > 0, "batchCount must be positive");
+        this.batchCount = batchCount;
+        return this;
+    }
+
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public FoldOptions setBatchBytes(long batchBytes) {
+        checkArgument(batchBytes > 0, "batchBytes must be positive");
+        this.batchBytes = batchBytes;
+        return this;
+    }
+
+    public int getFirstBatchCount() {
+        return firstBatchCount;
+    }
+
+    // @doc a smaller first batch, the batches after it growing twice as
+    // large each up to getBatchCount(); 0 for all of that size
+    public FoldOptions setFirstBatchCount(int firstBatchCount) {
+        checkArgument(firstBatchCount >= 0, "firstBatchCount must not be negative");
+        this.firstBatchCount = firstBatchCount;
+        return this;
+    }
+
+    public int getGetWindow() {
+        return getWindow;
+    }
+
+    // @doc how many gets of the keys matched by a query or of the keys of a
+    // point lookup are in flight at once
+    public FoldOptions setGetWindow(int getWindow) {
+        checkArgument(getWindow > 0, "getWindow must be positive");
+        this.getWindow = getWindow;
+        return this;
+    }
+
+    public OtpErlangTuple getQuery() {
+        return query;
+    }
+
+    // @doc fetch objects via 2i instead of folding the whole vnode
+    public FoldOptions setQuery(OtpErlangTuple query) {
+        this.query = query;
+        return this;
+    }
+
+    public List<String> getIndexOnly() {
+        return indexOnly;
+    }
+
+    // @doc answer the query from the index alone, without getting the
+    // objects: each key it matches is sent as {Key, undefined, [Row]}, the
+    // row having the index term as the value of each of these fields (none
+    // when only __key is projected)
+    public FoldOptions setIndexOnly(List<String> fields) {
+        this.indexOnly = fields;
+        return this;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public List<String> getPath() {
+        return path;
+    }
+
+    // @doc let Riak decode the JSON and send just these fields of each row,
+    // as {Key, VTag, Rows}. path is from PRSubTable.pathSegments(), or null
+    // when the whole document is the row.
+    public FoldOptions setProjection(List<String> fields, List<String> path) {
+        this.fields = checkNotNull(fields, "fields is null");
+        this.path = path;
+        return this;
+    }
+
+    public OtpErlangList getFilter() {
+        return filter;
+    }
+
+    // @doc drop rows in Riak that don't match, see FoldFilter. Only
+    // evaluated together with a projection, as it needs the decoded JSON.
+    public FoldOptions setFilter(OtpErlangList filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public OtpErlangList getKeys() {
+        return keys;
+    }
+
+    // @doc get just these keys from the vnode instead of folding it or
+    // running the query
+    public FoldOptions setKeys(OtpErlangList keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    // @doc fold only keys with erlang:phash2(Key, count) == index
+    public FoldOptions setSlice(int index, int count) {
+        checkArgument(count > 0 && index >= 0 && index < count, "bad slice %s of %s", index, count);
+        this.sliceIndex = index;
+        this.sliceCount = count;
+        return this;
+    }
+
+    public int getSliceIndex() {
+        return sliceIndex;
+    }
+
+    public int getSliceCount() {
+        return sliceCount;
+    }
+
+    public byte[] getResumeAfter() {
+        return resumeAfter;
+    }
+
+    // @doc skip the keys up to and including this one, null for none
+    public FoldOptions setResumeAfter(byte[] resumeAfter) {
+        this.resumeAfter = resumeAfter;
+        return this;
+    }
+
+    public FoldOptions setRetries(int retries, long backoffMillis) {
+        checkArgument(retries >= 0 && backoffMillis >= 0, "bad retries %s or backoff %s", retries, backoffMillis);
+        this.retries = retries;
+        this.retryBackoffMillis = backoffMillis;
+        return this;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public FoldOptions setRetryMaxKeys(int retryMaxKeys) {
+        checkArgument(retryMaxKeys >= 0, "retryMaxKeys is negative");
+        this.retryMaxKeys = retryMaxKeys;
+        return this;
+    }
+
+    public int getRetryMaxKeys() {
+        return retryMaxKeys;
+    }
+
+    public OtpErlangList toErlang() {
+        List<OtpErlangObject> l = new ArrayList<>();
+        l.add(option("batch_count", new OtpErlangLong(batchCount)));
+        l.add(option("batch_bytes", new OtpErlangLong(batchBytes)));
+        l.add(option("get_window", new OtpErlangLong(getWindow)));
+        if (firstBatchCount > 0) {
+            l.add(option("first_batch_count", new OtpErlangLong(firstBatchCount)));
+        }
+        if (keys != null) {
+            l.add(option("keys", keys));
+        } else if (query != null) {
+            l.add(option("query", query));
+            if (indexOnly != null) {
+                l.add(option("index_only", binaries(indexOnly)));
+            }
+        }
+        if (sliceCount > 1) {
+            OtpErlangObject[] slice = {new OtpErlangLong(sliceIndex), new OtpErlangLong(sliceCount)};
+            l.add(option("slice", new OtpErlangTuple(slice)));
+        }
+        if (resumeAfter != null) {
+            l.add(option("resume_after", new OtpErlangBinary(resumeAfter)));
+        }
+        if (fields != null) {
+            l.add(option("fields", binaries(fields)));
+        }
+        if (fields != null && path != null) {
+            List<OtpErlangObject> p = new ArrayList<>();
+            for (String key : path) {
+                p.add(key.equals("*") ? new OtpErlangAtom("*")
+                        : new OtpErlangBinary(key.getBytes(StandardCharsets.UTF_8)));
+            }
+            l.add(option("path", new OtpErlangList(p.toArray(new OtpErlangObject[p.size()]))));
+        }
+        if (fields != null && filter != null) {
+            l.add(option("filter", filter));
+        }
+        return new OtpErlangList(l.toArray(new OtpErlangObject[l.size()]));
+    }
+
+    private static OtpErlangList binaries(List<String> strings) {
+        List<OtpErlangObject> l = new ArrayList<>();
+        for (String s : strings) {
+            l.add(new OtpErlangBinary(s.getBytes(StandardCharsets.UTF_8)));
+        }
+        return new OtpErlangList(l.toArray(new OtpErlangObject[l.size()]));
+    }
+
+    private static OtpErlangTuple option(String name, OtpErlangObject value) {
+        OtpErlangObject[] t = {new OtpErlangAtom(name), value};
+        return new OtpErlangTuple(t);
+    }
+
+    public String toString() {
+        return toErlang().toString();
+    }
+}
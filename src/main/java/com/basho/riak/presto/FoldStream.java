@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+import io.airlift.log.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc reads a fold started by ldna:start_fold/4, one batch at a time.
+// The fold in Riak waits until the next batch is asked for, so that
+// neither side holds more than a couple of batches. The next batch is asked
+// for as soon as one arrives, so that Riak fills it while this one is decoded.
+public class FoldStream implements BatchStream {
+    private static final Logger log = Logger.get(FoldStream.class);
+
+    private final DirectConnection conn;
+    private final OtpErlangPid fold;
+    private volatile boolean done; // also closed by HedgedStream
+    private CompletableFuture<OtpErlangObject> nextReply; // asked for ahead
+
+    public FoldStream(DirectConnection conn, OtpErlangPid fold) {
+        this.conn = checkNotNull(conn);
+        this.fold = checkNotNull(fold);
+        this.done = false;
+    }
+
+    // @doc returns next batch of objects, or null when the fold has finished.
+    @Override
+    public OtpErlangList next()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        return read(false, 0);
+    }
+
+    // @doc the batch asked for stays asked for when it is NOT_READY, and
+    // the next call waits for it again
+    @Override
+    public OtpErlangList poll(long timeoutNanos)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        return read(true, System.nanoTime() + timeoutNanos);
+    }
+
+    private OtpErlangList read(boolean timed, long deadline)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        while (!done) {
+            if (nextReply == null) {
+                nextReply = conn.nextBatchAsync(fold);
+            }
+            if (timed && !arrives(nextReply, deadline - System.nanoTime())) {
+                return NOT_READY;
+            }
+            OtpErlangObject reply = conn.await(nextReply);
+            nextReply = null;
+            if (reply instanceof OtpErlangAtom
+                    && ((OtpErlangAtom) reply).atomValue().equals("not_ready")) {
+                continue;
+            }
+            OtpErlangTuple t = (OtpErlangTuple) reply;
+            String tag = ((OtpErlangAtom) t.elementAt(0)).atomValue();
+            if (tag.equals("error")) {
+                done = true;
+                throw new IOException("fold " + fold + " failed: " + t.elementAt(1));
+            }
+            done = tag.equals("done");
+            if (!done) {
+                nextReply = conn.nextBatchAsync(fold);
+            }
+            OtpErlangList batch = toList(t.elementAt(1));
+            if (batch.arity() > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    // @doc stops the fold in Riak unless it has already finished
+    @Override
+    public void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            conn.cancelFold(fold);
+        } catch (Exception e) {
+            log.warn("failed to cancel fold %s: %s", fold, e.getMessage());
+        }
+    }
+
+    // whether a reply comes within nanos; if it fails, conn.await() says how
+    private static boolean arrives(CompletableFuture<OtpErlangObject> reply, long nanos)
+            throws IOException {
+        try {
+            reply.get(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for Riak", e);
+        }
+        return true;
+    }
+
+    // [] is encoded as nil, and a list of small integers as a string
+    private static OtpErlangList toList(OtpErlangObject o) {
+        if (o instanceof OtpErlangList) {
+            return (OtpErlangList) o;
+        }
+        return new OtpErlangList(((OtpErlangString) o).stringValue());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpAuthException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc a split whose fold, when a batch is late, is raced by a fold of the
+// same keys from other replicas (SplitTask.getAlternates). That fold
+// starts after the keys read so far, or skips them, see ReadKeys. The
+// stream sending the batch is read to the end and the other one is
+// cancelled; a split is hedged once at most. Batches are read on the
+// calling thread, waiting up to the threshold (BatchStream.poll); only a
+// late one is raced, with both streams read on threads of Hedging.
+public class HedgedStream implements BatchStream {
+    private static final Logger log = Logger.get(HedgedStream.class);
+
+    private final Restart hedge;
+    private final Hedging hedging;
+    private final ReadKeys keys;
+    private BatchStream current; // the primary until hedged
+    private boolean hedged;
+    private boolean first = true;
+
+    public HedgedStream(BatchStream primary, Restart hedge, Hedging hedging, int maxKeys) {
+        this.current = checkNotNull(primary, "primary is null");
+        this.hedge = checkNotNull(hedge, "hedge is null");
+        this.hedging = checkNotNull(hedging, "hedging is null");
+        this.keys = new ReadKeys(maxKeys);
+    }
+
+    @Override
+    public OtpErlangList next()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        while (true) {
+            OtpErlangList batch = hedged ? current.next() : race();
+            if (batch == null) {
+                return null;
+            }
+            batch = keys.read(batch);
+            if (batch.arity() > 0) {
+                return batch;
+            }
+        }
+    }
+
+    private OtpErlangList race()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        long start = System.nanoTime();
+        long threshold = first ? hedging.getThresholdNanos() : hedging.getNextThresholdNanos();
+        OtpErlangList batch = threshold == Long.MAX_VALUE || !keys.canRestart()
+                ? current.next()
+                : race(threshold);
+        long nanos = System.nanoTime() - start;
+        if (first) {
+            hedging.firstBatch(nanos);
+        } else {
+            hedging.nextBatch(nanos);
+        }
+        first = false;
+        return batch;
+    }
+
+    private OtpErlangList race(long thresholdNanos)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        OtpErlangList batch = current.poll(thresholdNanos);
+        if (batch != NOT_READY) {
+            return batch;
+        }
+        hedged = true;
+        BatchStream alternate = startHedge();
+        if (alternate == null) {
+            return current.next();
+        }
+        hedging.fired();
+        return race(alternate);
+    }
+
+    // @doc the batch of whichever of the late primary and alternate sends
+    // one first, the other one being closed
+    private OtpErlangList race(BatchStream alternate)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        CompletionService<OtpErlangList> completion = new ExecutorCompletionService<>(hedging.getExecutor());
+        Map<Future<OtpErlangList>, BatchStream> racing = new HashMap<>();
+        racing.put(completion.submit(current::next), current);
+        racing.put(completion.submit(alternate::next), alternate);
+        try {
+            Future<OtpErlangList> first = completion.take();
+            OtpErlangList batch;
+            try {
+                batch = first.get();
+            } catch (ExecutionException e) {
+                racing.remove(first).close();
+                log.warn("fold failed while hedged, reading the other one: %s", e.getCause());
+                first = completion.take();
+                batch = first.get();
+            }
+            BatchStream winner = racing.remove(first);
+            if (winner != current) {
+                hedging.won();
+                current = winner;
+            }
+            return batch;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), OtpErlangExit.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), OtpAuthException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            for (BatchStream loser : racing.values()) {
+                loser.close();
+            }
+        }
+    }
+
+    private BatchStream startHedge() {
+        try {
+            BatchStream alternate = hedge.start(keys.restart());
+            if (alternate == null) {
+                log.debug("no replicas to hedge %s with", current);
+            }
+            return alternate;
+        } catch (Exception e) {
+            log.warn("failed to hedge a split: %s", e);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        return current.isDone();
+    }
+
+    @Override
+    public void close() {
+        current.close();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc when to hedge a split, see HedgedStream. A split is hedged when a
+// batch takes riak.scan.hedge-factor times as long as the median of the
+// last ones of this worker, and at least riak.scan.hedge-min-ms. First
+// batches, which wait for the fold to start, and later ones, which are
+// mostly asked for ahead, are timed apart. The counts are exported over JMX.
+public class Hedging {
+    private static final int WINDOW = 32; // batches the median is taken of
+    private static final int MIN_PEERS = 4; // no hedging before that many
+
+    private final double factor;
+    private final long minNanos;
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("riak-hedge-%d").build());
+
+    private final Latencies firstBatches = new Latencies();
+    private final Latencies nextBatches = new Latencies();
+    private long fired;
+    private long won;
+
+    @Inject
+    public Hedging(RiakConfig config) {
+        checkNotNull(config, "config is null");
+        this.factor = config.getHedgeFactor();
+        this.minNanos = TimeUnit.MILLISECONDS.toNanos(config.getHedgeMinMillis());
+    }
+
+    public boolean isEnabled() {
+        return factor > 0;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // @doc how long to wait for the first batch of a split before hedging it
+    public synchronized long getThresholdNanos() {
+        return threshold(firstBatches);
+    }
+
+    // @doc same for any later batch
+    public synchronized long getNextThresholdNanos() {
+        return threshold(nextBatches);
+    }
+
+    private long threshold(Latencies latencies) {
+        if (latencies.count < MIN_PEERS) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(minNanos, (long) (factor * latencies.median()));
+    }
+
+    public synchronized void firstBatch(long nanos) {
+        firstBatches.add(nanos);
+    }
+
+    public synchronized void nextBatch(long nanos) {
+        nextBatches.add(nanos);
+    }
+
+    public synchronized void fired() {
+        fired++;
+    }
+
+    public synchronized void won() {
+        won++;
+    }
+
+    @Managed
+    public synchronized long getMedianNanos() {
+        return firstBatches.median();
+    }
+
+    @Managed
+    public synchronized long getNextMedianNanos() {
+        return nextBatches.median();
+    }
+
+    // @doc hedges started
+    @Managed
+    public synchronized long getFired() {
+        return fired;
+    }
+
+    // @doc hedges which sent their batch before the split they hedged
+    @Managed
+    public synchronized long getWon() {
+        return won;
+    }
+
+    private static class Latencies {
+        private final long[] nanos = new long[WINDOW];
+        private long count;
+
+        void add(long n) {
+            nanos[(int) (count++ % WINDOW)] = n;
+        }
+
+        long median() {
+            int n = (int) Math.min(count, WINDOW);
+            if (n == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, n);
+            Arrays.sort(sorted);
+            return sorted[n / 2];
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// @doc the terms of an index field on one vnode, as ldna:index_histogram/6
+// reads them: ranges of terms with how many entries and distinct terms each
+// has. It estimates how many keys a query of IndexQuery on the field
+// matches, whatever its values, so that ScanPlanner keeps one per field.
+// When the index had more entries than were read, the ranges cover just
+// its lowest terms; an equality beyond them is taken to match as many
+// keys as an average term, and a range beyond them is UNKNOWN.
+public class IndexHistogram {
+    static final long UNKNOWN = -1;
+
+    private final boolean complete;
+    private final List<TermRange> ranges;
+
+    IndexHistogram(boolean complete, List<TermRange> ranges) {
+        this.complete = complete;
+        this.ranges = ranges;
+    }
+
+    // @doc from {Complete, [{Low, High, Entries, Distinct}]}
+    public static IndexHistogram fromErlang(OtpErlangTuple histogram)
+            throws OtpErlangRangeException {
+        List<TermRange> ranges = new ArrayList<>();
+        for (OtpErlangObject o : (OtpErlangList) histogram.elementAt(1)) {
+            OtpErlangTuple r = (OtpErlangTuple) o;
+            ranges.add(new TermRange(r.elementAt(0), r.elementAt(1),
+                    ((OtpErlangLong) r.elementAt(2)).longValue(),
+                    ((OtpErlangLong) r.elementAt(3)).longValue()));
+        }
+        return new IndexHistogram(((OtpErlangAtom) histogram.elementAt(0)).booleanValue(), ranges);
+    }
+
+    // @doc the keys matching {eq, Field, V}, {range, Field, Start, End} or
+    // a union of those, or UNKNOWN
+    public long estimate(OtpErlangTuple query) {
+        String op = ((OtpErlangAtom) query.elementAt(0)).atomValue();
+        switch (op) {
+            case "eq":
+                return estimateEq(query.elementAt(2));
+            case "range":
+                return estimateRange(query.elementAt(2), query.elementAt(3));
+            case "union":
+                long sum = 0;
+                for (OtpErlangObject q : (OtpErlangList) query.elementAt(1)) {
+                    long c = estimate((OtpErlangTuple) q);
+                    if (c == UNKNOWN) {
+                        return UNKNOWN;
+                    }
+                    sum += c;
+                }
+                return sum;
+            default:
+                throw new IllegalArgumentException("not a query of one field: " + query);
+        }
+    }
+
+    private long estimateEq(OtpErlangObject value) {
+        for (TermRange r : ranges) {
+            if (compare(value, r.low) < 0) {
+                // between two ranges, or below all: no such term
+                return 0;
+            } else if (compare(value, r.high) <= 0) {
+                return (r.entries + r.distinct - 1) / r.distinct;
+            }
+        }
+        if (complete) {
+            return 0;
+        }
+        long entries = 0;
+        long distinct = 0;
+        for (TermRange r : ranges) {
+            entries += r.entries;
+            distinct += r.distinct;
+        }
+        return distinct == 0 ? UNKNOWN : (entries + distinct - 1) / distinct;
+    }
+
+    // as many entries as the ranges overlapping start..end have, which
+    // overstates what a range ending inside one of them matches
+    private long estimateRange(OtpErlangObject start, OtpErlangObject end) {
+        if (!complete && (ranges.isEmpty() || compare(end, ranges.get(ranges.size() - 1).high) > 0)) {
+            return UNKNOWN;
+        }
+        long entries = 0;
+        for (TermRange r : ranges) {
+            if (compare(r.low, end) <= 0 && compare(r.high, start) >= 0) {
+                entries += r.entries;
+            }
+        }
+        return entries;
+    }
+
+    // @doc Erlang's order of the terms of an index: integers, then binaries
+    // byte by byte
+    static int compare(OtpErlangObject a, OtpErlangObject b) {
+        boolean aInt = a instanceof OtpErlangLong;
+        boolean bInt = b instanceof OtpErlangLong;
+        if (aInt && bInt) {
+            return ((OtpErlangLong) a).bigIntegerValue().compareTo(((OtpErlangLong) b).bigIntegerValue());
+        } else if (aInt || bInt) {
+            return aInt ? -1 : 1;
+        }
+        checkArgument(a instanceof OtpErlangBinary && b instanceof OtpErlangBinary,
+                "not index terms: %s, %s", a, b);
+        return UnsignedBytes.lexicographicalComparator().compare(
+                ((OtpErlangBinary) a).binaryValue(), ((OtpErlangBinary) b).binaryValue());
+    }
+
+    static class TermRange {
+        private final OtpErlangObject low;
+        private final OtpErlangObject high;
+        private final long entries;
+        private final long distinct;
+
+        TermRange(OtpErlangObject low, OtpErlangObject high, long entries, long distinct) {
+            checkArgument(distinct > 0, "distinct must be positive");
+            this.low = low;
+            this.high = high;
+            this.entries = entries;
+            this.distinct = distinct;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.RiakColumn;
+import com.basho.riak.presto.models.RiakColumnHandle;
+import com.ericsson.otp.erlang.*;
+import com.facebook.presto.spi.Domain;
+import com.facebook.presto.spi.Marker;
+import com.facebook.presto.spi.Range;
+import com.facebook.presto.spi.TupleDomain;
+import com.facebook.presto.spi.type.BigintType;
+import com.facebook.presto.spi.type.VarcharType;
+import io.airlift.slice.Slice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// @doc translates a TupleDomain into the {query, Q} option of
+// ldna:start_fold/4, a 2i query on __key ($key) or on an indexed column
+// (Name_int for BIGINT, Name_bin for VARCHAR):
+//   {eq, Field, V} | {range, Field, Start, End}
+//   | {union, [Q]}: each range of the domain, e.g. of an IN list, as its own
+//     query; ldna fetches every key matching any of them once.
+//   | {intersect, [Q]}: one query per indexed column; ldna fetches only the
+//     keys matching all of them.
+// 2i ranges are inclusive, so exclusive bounds are queried inclusively;
+// Presto applies the predicate to what comes back anyway.
+public class IndexQuery {
+    // a domain with more ranges is queried as their span
+    static final int MAX_RANGES = 64;
+    private static final OtpErlangBinary KEY_FIELD =
+            new OtpErlangBinary("$key".getBytes(StandardCharsets.UTF_8));
+
+    private IndexQuery() {
+    }
+
+    // @doc returns null when no column of the domain can be looked up in an index
+    public static OtpErlangTuple encode(TupleDomain tupleDomain) {
+        List<OtpErlangTuple> queries = candidates(tupleDomain);
+        if (queries.isEmpty()) {
+            return null;
+        } else if (field(queries.get(0)).equals(KEY_FIELD)) {
+            // the primary key is the best index there is
+            return queries.get(0);
+        }
+        return intersect(queries);
+    }
+
+    // @doc the query of each column of the domain that can be looked up in
+    // an index, the primary key first, then the most selective ones
+    public static List<OtpErlangTuple> candidates(TupleDomain tupleDomain) {
+        List<OtpErlangTuple> queries = new ArrayList<>();
+        if (tupleDomain.isAll() || tupleDomain.isNone()) {
+            return queries;
+        }
+        List<Map.Entry<Integer, OtpErlangTuple>> ranked = new ArrayList<>();
+        Map<RiakColumnHandle, Domain> domains = tupleDomain.getDomains();
+        for (Map.Entry<RiakColumnHandle, Domain> entry : domains.entrySet()) {
+            RiakColumn column = entry.getKey().getColumn();
+            OtpErlangTuple q = encode(indexField(column), entry.getValue());
+            if (q != null) {
+                int rank = column.getPkey() ? -1 : selectivity(entry.getValue());
+                ranked.add(new AbstractMap.SimpleImmutableEntry<>(rank, q));
+            }
+        }
+        Collections.sort(ranked, (a, b) -> Integer.compare(a.getKey(), b.getKey()));
+        for (Map.Entry<Integer, OtpErlangTuple> e : ranked) {
+            queries.add(e.getValue());
+        }
+        return queries;
+    }
+
+    // @doc the keys matching all of the queries; ldna collects the keys of
+    // all but the last one, and only keeps those it has already seen from
+    // the second one on, so the most selective should go first and the last
+    // one is merely streamed
+    public static OtpErlangTuple intersect(List<OtpErlangTuple> queries) {
+        if (queries.size() == 1) {
+            return queries.get(0);
+        }
+        OtpErlangObject[] t = {new OtpErlangAtom("intersect"),
+                new OtpErlangList(queries.toArray(new OtpErlangObject[queries.size()]))};
+        return new OtpErlangTuple(t);
+    }
+
+    // @doc a query matching every key of the bucket, as a leveldb backend
+    // keeps them in the $bucket index
+    public static OtpErlangTuple bucketKeys(String bucket) {
+        OtpErlangObject[] t = {new OtpErlangAtom("eq"),
+                new OtpErlangBinary("$bucket".getBytes(StandardCharsets.UTF_8)),
+                new OtpErlangBinary(bucket.getBytes(StandardCharsets.UTF_8))};
+        return new OtpErlangTuple(t);
+    }
+
+    // @doc term_to_binary of a query, as CoverageSplit carries it; null for none
+    public static byte[] toBytes(OtpErlangTuple query) {
+        if (query == null) {
+            return null;
+        }
+        OtpOutputStream oos = new OtpOutputStream();
+        oos.write_any(query);
+        return oos.toByteArray();
+    }
+
+    // @doc the 2i field a query of encode(String, Domain) looks up
+    static OtpErlangObject field(OtpErlangTuple query) {
+        OtpErlangObject f = query.elementAt(1);
+        if (f instanceof OtpErlangList) {
+            // {union, [Q]}
+            return field((OtpErlangTuple) ((OtpErlangList) f).elementAt(0));
+        }
+        return f;
+    }
+
+    // @doc a guess of how many keys a domain matches, for ordering only:
+    // the number of values of an equality or IN list, or any range after them
+    static int selectivity(Domain domain) {
+        int count = domain.getRanges().getRangeCount();
+        for (Range r : domain.getRanges()) {
+            if (!r.isSingleValue()) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return count;
+    }
+
+    // @doc the 2i field of a column, or null when it isn't indexed
+    public static String indexField(RiakColumn column) {
+        if (column.getPkey()) {
+            return "$key";
+        } else if (!column.getIndex()) {
+            return null;
+        } else if (column.getType() == BigintType.BIGINT) {
+            return column.getName() + "_int";
+        } else if (column.getType() == VarcharType.VARCHAR) {
+            return column.getName() + "_bin";
+        }
+        return null;
+    }
+
+    static OtpErlangTuple encode(String field, Domain domain) {
+        if (field == null || domain.isAll() || domain.isNone() || domain.isNullAllowed()) {
+            // objects without the field aren't in the index
+            return null;
+        }
+        OtpErlangBinary f = new OtpErlangBinary(field.getBytes(StandardCharsets.UTF_8));
+        if (domain.getRanges().getRangeCount() > MAX_RANGES) {
+            return range(f, domain.getRanges().getSpan());
+        }
+        List<OtpErlangObject> queries = new ArrayList<>();
+        for (Range r : domain.getRanges()) {
+            queries.add(r.isSingleValue() ? eq(f, r.getSingleValue()) : range(f, r));
+        }
+        if (queries.size() == 1) {
+            return (OtpErlangTuple) queries.get(0);
+        }
+        OtpErlangObject[] t = {new OtpErlangAtom("union"),
+                new OtpErlangList(queries.toArray(new OtpErlangObject[queries.size()]))};
+        return new OtpErlangTuple(t);
+    }
+
+    private static OtpErlangTuple eq(OtpErlangBinary field, Comparable<?> value) {
+        OtpErlangObject[] t = {new OtpErlangAtom("eq"), field, toErlang(value)};
+        return new OtpErlangTuple(t);
+    }
+
+    private static OtpErlangTuple range(OtpErlangBinary field, Range range) {
+        OtpErlangObject[] t = {new OtpErlangAtom("range"), field,
+                bound(range.getLow(), range.getLow().isLowerUnbounded(), range.getType(), false),
+                bound(range.getHigh(), range.getHigh().isUpperUnbounded(), range.getType(), true)};
+        return new OtpErlangTuple(t);
+    }
+
+    // NOTE: both Erlang and JSON can express integers beyond Long, and
+    // no UTF-8 string has a byte 0xff, so these cover what is indexed
+    private static OtpErlangObject bound(Marker marker, boolean unbounded, Class<?> type, boolean high) {
+        if (!unbounded) {
+            return toErlang(marker.getValue());
+        } else if (type == Long.class) {
+            return new OtpErlangLong(high ? Long.MAX_VALUE : Long.MIN_VALUE);
+        }
+        return new OtpErlangBinary(high ? new byte[]{(byte) 0xff} : new byte[0]);
+    }
+
+    private static OtpErlangObject toErlang(Comparable<?> value) {
+        if (value instanceof Long) {
+            return new OtpErlangLong((Long) value);
+        } else if (value instanceof Slice) {
+            return new OtpErlangBinary(((Slice) value).getBytes());
+        }
+        return new OtpErlangBinary(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.PairwiseNode;
+import com.facebook.presto.spi.HostAddress;
+import com.facebook.presto.spi.Node;
+import com.facebook.presto.spi.NodeManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import javax.inject.Inject;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc pairs Riak nodes with presto workers. Every presto node registers
+// itself as a PairwiseNode under riak.erlang.node/host:port in
+// __presto_schema each riak.presto.heartbeat-ms; the coordinator looks up
+// the workers of a Riak node when placing splits. Registrations missing
+// MISSED_HEARTBEATS heartbeats, of nodes presto doesn't know as active,
+// or of coordinators, are ignored.
+public class NodeRegistry {
+    private static final Logger log = Logger.get(NodeRegistry.class);
+    private static final int MISSED_HEARTBEATS = 3;
+    // so that every lookup lists the workers of a Riak node the same way
+    private static final Comparator<HostAddress> HOST_ORDER = new Comparator<HostAddress>() {
+        @Override
+        public int compare(HostAddress a, HostAddress b) {
+            return a.toString().compareTo(b.toString());
+        }
+    };
+
+    private final RiakClient riakClient;
+    private final NodeManager nodeManager;
+    private final long heartbeatMillis;
+    private final ScheduledExecutorService executor;
+    // Riak node => {PairwiseNodes, when they were read}
+    private final Map<String, Lookup> lookups = new HashMap<>();
+
+    @Inject
+    public NodeRegistry(RiakClient riakClient, NodeManager nodeManager, RiakConfig config) {
+        this.riakClient = checkNotNull(riakClient, "riakClient is null");
+        this.nodeManager = checkNotNull(nodeManager, "nodeManager is null");
+        this.heartbeatMillis = checkNotNull(config, "config is null").getHeartbeatMillis();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("riak-node-heartbeat-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat() {
+        try {
+            HostAddress self = nodeManager.getCurrentNode().getHostAndPort();
+            riakClient.register(self.getHostText(), self.getPort());
+        } catch (Exception e) {
+            // the next heartbeat will tell
+            log.warn("failed to register this node to Riak: %s", e);
+        }
+    }
+
+    // @doc the presto workers paired with the Riak node like 'riak@127.0.0.1',
+    // empty when there's none alive.
+    public List<HostAddress> getWorkers(String riakNode) {
+        long now = System.currentTimeMillis();
+        ImmutableList.Builder<HostAddress> workers = ImmutableList.builder();
+        for (PairwiseNode node : lookup(riakNode)) {
+            if (now - node.getHeartbeat() <= MISSED_HEARTBEATS * heartbeatMillis) {
+                workers.add(node.getHostAndPort());
+            }
+        }
+        return workers.build();
+    }
+
+    // registrations of the active workers are read from Riak at most once a
+    // heartbeat
+    private synchronized List<PairwiseNode> lookup(String riakNode) {
+        long now = System.currentTimeMillis();
+        Lookup lookup = lookups.get(riakNode);
+        if (lookup == null || now - lookup.readAt > heartbeatMillis) {
+            List<PairwiseNode> nodes = ImmutableList.of();
+            try {
+                nodes = riakClient.getPairwiseNodes(riakNode, activeWorkers());
+            } catch (Exception e) {
+                log.warn("failed to look up the workers of %s: %s", riakNode, e);
+            }
+            lookup = new Lookup(nodes, now);
+            lookups.put(riakNode, lookup);
+        }
+        return lookup.nodes;
+    }
+
+    private Set<HostAddress> activeWorkers() {
+        Set<HostAddress> workers = new TreeSet<>(HOST_ORDER);
+        for (Node node : nodeManager.getActiveNodes()) {
+            workers.add(node.getHostAndPort());
+        }
+        for (Node node : nodeManager.getCoordinators()) {
+            workers.remove(node.getHostAndPort());
+        }
+        return workers;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class Lookup {
+        private final List<PairwiseNode> nodes;
+        private final long readAt;
+
+        private Lookup(List<PairwiseNode> nodes, long readAt) {
+            this.nodes = nodes;
+            this.readAt = readAt;
+        }
+    }
+}
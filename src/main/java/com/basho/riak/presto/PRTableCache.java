@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.PRTable;
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import io.airlift.log.Logger;
+
+import javax.inject.Inject;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc keeps table definitions by name along with their version, a hash of
+// the JSON stored in Riak. Splits carry just the version; workers resolve it
+// here and only read Riak again when the definition has changed.
+public class PRTableCache {
+    private static final Logger log = Logger.get(PRTableCache.class);
+
+    private final RiakClient riakClient;
+    private final Map<SchemaTableName, Entry> tables = new HashMap<>();
+
+    @Inject
+    public PRTableCache(RiakClient riakClient) {
+        this.riakClient = checkNotNull(riakClient, "riakClient is null");
+    }
+
+    // @doc reads the latest definition from Riak; used when planning a query.
+    public Entry fetch(SchemaTableName schemaTableName) {
+        try {
+            String definition = riakClient.getTableDefinition(schemaTableName);
+            Entry entry = new Entry(version(definition),
+                    riakClient.parseTable(schemaTableName, definition));
+            synchronized (this) {
+                tables.put(schemaTableName, entry);
+            }
+            return entry;
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // @doc the definition with this version; read again from Riak on a miss.
+    public PRTable get(SchemaTableName schemaTableName, String version) {
+        checkNotNull(version, "version is null");
+        synchronized (this) {
+            Entry entry = tables.get(schemaTableName);
+            if (entry != null && entry.getVersion().equals(version)) {
+                return entry.getTable();
+            }
+        }
+        Entry entry = fetch(schemaTableName);
+        if (!entry.getVersion().equals(version)) {
+            // changed again after the split was planned: the newest wins
+            log.warn("table %s is at version %s, split expects %s",
+                    schemaTableName, entry.getVersion(), version);
+        }
+        return entry.getTable();
+    }
+
+    public static String version(String definition) {
+        return Hashing.sha1().hashString(definition, Charsets.UTF_8).toString();
+    }
+
+    public static class Entry {
+        private final String version;
+        private final PRTable table;
+
+        public Entry(String version, PRTable table) {
+            this.version = checkNotNull(version, "version is null");
+            this.table = checkNotNull(table, "table is null");
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public PRTable getTable() {
+            return table;
+        }
+    }
+}
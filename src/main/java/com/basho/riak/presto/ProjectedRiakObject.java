@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// @doc {Key, VTag, Rows} sent by ldna when the fold has projected the
+// columns already, Rows being [[{Field, Value}]]. Values are JSON scalars
+// as Erlang terms, or JSON text for nested objects and arrays.
+public class ProjectedRiakObject {
+    private final byte[] key;
+    private final String vtag;
+    private final List<Map<String, Object>> rows;
+    private long bytes;
+
+    public ProjectedRiakObject(OtpErlangObject object) {
+        OtpErlangTuple t = (OtpErlangTuple) object;
+        this.key = ((OtpErlangBinary) t.elementAt(0)).binaryValue();
+        if (t.elementAt(1) instanceof OtpErlangBinary) {
+            this.vtag = new String(((OtpErlangBinary) t.elementAt(1)).binaryValue(), StandardCharsets.UTF_8);
+        } else {
+            this.vtag = null;
+        }
+        this.bytes = key.length;
+        this.rows = new ArrayList<>();
+        for (OtpErlangObject row : (OtpErlangList) t.elementAt(2)) {
+            Map<String, Object> record = new HashMap<>();
+            for (OtpErlangObject field : (OtpErlangList) row) {
+                OtpErlangTuple kv = (OtpErlangTuple) field;
+                String name = new String(((OtpErlangBinary) kv.elementAt(0)).binaryValue(), StandardCharsets.UTF_8);
+                record.put(name, toJava(kv.elementAt(1)));
+            }
+            rows.add(record);
+        }
+    }
+
+    public static boolean isProjected(OtpErlangObject object) {
+        if (!(object instanceof OtpErlangTuple)) {
+            return false;
+        }
+        OtpErlangTuple t = (OtpErlangTuple) object;
+        return t.arity() == 3 && t.elementAt(0) instanceof OtpErlangBinary;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public String getVTag() {
+        return vtag;
+    }
+
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    // @doc rough size of the decoded data, for getCompletedBytes()
+    public long getBytes() {
+        return bytes;
+    }
+
+    // the same Java types Jackson would have produced from the JSON
+    private Object toJava(OtpErlangObject o) {
+        if (o instanceof OtpErlangBinary) {
+            byte[] b = ((OtpErlangBinary) o).binaryValue();
+            bytes += b.length;
+            return new String(b, StandardCharsets.UTF_8);
+        }
+        bytes += 8;
+        if (o instanceof OtpErlangLong) {
+            OtpErlangLong l = (OtpErlangLong) o;
+            return l.isLong() ? (Object) l.longValue() : l.bigIntegerValue();
+        } else if (o instanceof OtpErlangDouble) {
+            return ((OtpErlangDouble) o).doubleValue();
+        } else if (o instanceof OtpErlangAtom) {
+            String atom = ((OtpErlangAtom) o).atomValue();
+            if (atom.equals("true") || atom.equals("false")) {
+                return Boolean.valueOf(atom);
+            }
+            return null; // null
+        }
+        return o.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// @doc the keys a split has read, so that it can be started over on
+// another replica without reading an object twice, see RetryingStream and
+// HedgedStream. As long as the keys came in order (a leveldb fold does
+// that) the new fold resumes after the last one. Otherwise the objects
+// whose keys are among those read so far, kept as 64-bit hashes, are
+// skipped; only the first maxKeys are kept, and a split that has read
+// more than that out of order can't be started over.
+public class ReadKeys {
+    private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private final int maxKeys;
+    private KeyHashSet seen = new KeyHashSet(); // null when more than maxKeys
+    private boolean ordered = true; // all keys read came in ascending order
+    private byte[] lastKey;
+    private boolean restarted;
+
+    public ReadKeys(int maxKeys) {
+        checkArgument(maxKeys >= 0, "maxKeys is negative");
+        this.maxKeys = maxKeys;
+    }
+
+    // @doc the objects of batch not read before; may be empty
+    public OtpErlangList read(OtpErlangList batch) {
+        List<OtpErlangObject> fresh = new ArrayList<>(batch.arity());
+        for (OtpErlangObject o : batch) {
+            if (read(key(o))) {
+                fresh.add(o);
+            }
+        }
+        if (fresh.size() == batch.arity()) {
+            return batch;
+        }
+        return new OtpErlangList(fresh.toArray(new OtpErlangObject[fresh.size()]));
+    }
+
+    // @doc false if the key has been read before
+    private boolean read(byte[] key) {
+        if (restarted && !ordered && seen != null && seen.contains(hash(key))) {
+            return false;
+        }
+        if (ordered && lastKey != null && KEY_ORDER.compare(key, lastKey) <= 0) {
+            ordered = false;
+        }
+        lastKey = key;
+        if (seen != null) {
+            seen.add(hash(key));
+            if (seen.size() > maxKeys) {
+                seen = null;
+            }
+        }
+        return true;
+    }
+
+    public boolean canRestart() {
+        return ordered || seen != null;
+    }
+
+    // @doc the key to start a new fold after, or null to start it from the
+    // beginning; objects it sends again are skipped from now on
+    public byte[] restart() {
+        restarted = true;
+        return ordered ? lastKey : null;
+    }
+
+    // the key of an r_object, or of a {Key, VTag, Rows} of a projection
+    private static byte[] key(OtpErlangObject o) {
+        OtpErlangTuple t = (OtpErlangTuple) o;
+        OtpErlangBinary key = (OtpErlangBinary) (ProjectedRiakObject.isProjected(o)
+                ? t.elementAt(0)
+                : t.elementAt(2));
+        return key.binaryValue();
+    }
+
+    private static long hash(byte[] key) {
+        return Hashing.murmur3_128().hashBytes(key).asLong();
+    }
+
+    // open addressing set of longs, 0 standing for the empty slot
+    static class KeyHashSet {
+        private long[] slots = new long[1024];
+        private boolean hasZero;
+        private int size;
+
+        int size() {
+            return size + (hasZero ? 1 : 0);
+        }
+
+        boolean contains(long hash) {
+            if (hash == 0) {
+                return hasZero;
+            }
+            int mask = slots.length - 1;
+            for (int i = (int) (hash ^ (hash >>> 32)) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean add(long hash) {
+            if (hash == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if (size * 2 >= slots.length) {
+                grow();
+            }
+            int mask = slots.length - 1;
+            for (int i = (int) (hash ^ (hash >>> 32)) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == hash) {
+                    return false;
+                }
+                if (slots[i] == 0) {
+                    slots[i] = hash;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            size = 0;
+            for (long hash : old) {
+                if (hash != 0) {
+                    add(hash);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpAuthException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc a split that survives its vnode or node going away: when the fold
+// fails, the keys of the split are read again from other replicas
+// (SplitTask.getAlternates, or the same vnode again if there are none),
+// up to riak.scan.retries times, waiting riak.scan.retry-backoff-ms and
+// twice as long each time more. Objects read before the failure are not
+// read twice, see ReadKeys; a split that has read more than
+// riak.scan.retry-max-keys keys out of order is not retried.
+public class RetryingStream implements BatchStream {
+    private static final Logger log = Logger.get(RetryingStream.class);
+
+    private final Object split; // for the log
+    private final Restart restart;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final ReadKeys keys;
+    private BatchStream current;
+    private int retries;
+
+    public RetryingStream(BatchStream first, Object split, Restart restart,
+                          int maxRetries, long backoffMillis, int maxKeys) {
+        this.current = checkNotNull(first, "first is null");
+        this.split = checkNotNull(split, "split is null");
+        this.restart = checkNotNull(restart, "restart is null");
+        checkArgument(maxRetries >= 0, "maxRetries is negative");
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.keys = new ReadKeys(maxKeys);
+    }
+
+    @Override
+    public OtpErlangList next()
+            throws IOException, OtpErlangExit, OtpAuthException {
+        while (true) {
+            OtpErlangList batch;
+            try {
+                batch = current.next();
+            } catch (IOException | OtpErlangExit e) {
+                retry(e);
+                continue;
+            }
+            if (batch == null) {
+                return null;
+            }
+            batch = keys.read(batch);
+            if (batch.arity() > 0) {
+                return batch;
+            }
+        }
+    }
+
+    // @doc starts the split over, until it starts or the retries run out
+    private void retry(Exception cause)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        current.close();
+        while (true) {
+            if (retries >= maxRetries || !keys.canRestart()) {
+                Throwables.propagateIfInstanceOf(cause, IOException.class);
+                Throwables.propagateIfInstanceOf(cause, OtpErlangExit.class);
+                throw Throwables.propagate(cause);
+            }
+            retries++;
+            long wait = backoffMillis << (retries - 1);
+            log.warn("split %s failed (%s), retry %d of %d in %d ms",
+                    split, cause, retries, maxRetries, wait);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+            try {
+                current = restart.start(keys.restart());
+                return;
+            } catch (IOException | OtpErlangExit e) {
+                cause = e;
+            }
+        }
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    @Override
+    public boolean isDone() {
+        return current.isDone();
+    }
+
+    @Override
+    public void close() {
+        current.close();
+    }
+}
@@ -25,6 +25,7 @@ import com.basho.riak.client.core.util.BinaryValue;
 import com.basho.riak.presto.models.PRSchema;
 import com.basho.riak.presto.models.PRTable;
 import com.basho.riak.presto.models.PairwiseNode;
+import com.facebook.presto.spi.HostAddress;
 import com.facebook.presto.spi.SchemaNotFoundException;
 import com.facebook.presto.spi.SchemaTableName;
 import com.facebook.presto.spi.TableNotFoundException;
@@ -38,7 +39,9 @@ import io.airlift.log.Logger;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -104,33 +107,73 @@ public class RiakClient {
 
     // @doc register presto node's hostname and port to Riak,
     // so as to Riak can return correct presto node corresponding to a vnode.
-    public void register() throws InterruptedException {
-
-        String host = HostAndPort.fromString(config.getHost()).getHostText();
-        log.debug("presto port ===> %s:%s", host, config.getPrestoPort());
-        // riak.erlang.node => { presto.erlang.node, node.ip, http-server.http.port }
-        PairwiseNode pairNode = new PairwiseNode(config.getLocalNode(), host, config.getPrestoPort());
+    // NodeRegistry calls this periodically as a heartbeat. Each presto node
+    // has a key of its own, see registrationKey.
+    public void register(String host, int port)
+            throws InterruptedException, JsonProcessingException {
+
+        log.debug("presto port ===> %s:%s", host, port);
+        // riak.erlang.node/host:port => { riak.erlang.node, node.ip, http-server.http.port }
+        PairwiseNode pairNode = new PairwiseNode(config.getLocalNode(), host, port,
+                System.currentTimeMillis());
         RiakObject obj = new RiakObject();
         obj.setContentType("application/json");
-        obj.setValue(BinaryValue.create(pairNode.toString()));
+        obj.setValue(BinaryValue.create(objectMapper.writeValueAsString(pairNode)));
         log.debug("Registering membership: %s", pairNode.toString());
 
-        log.info("localnode: %s", config.getLocalNode());
-        BinaryValue localNode = BinaryValue.create(config.getLocalNode());
-        StoreOperation op = new StoreOperation.Builder(new Location(NAMESPACE, localNode))
+        BinaryValue key = BinaryValue.create(registrationKey(config.getLocalNode(),
+                HostAddress.fromParts(host, port)));
+        StoreOperation op = new StoreOperation.Builder(new Location(NAMESPACE, key))
                 .withContent(obj).build();
 
         cluster.execute(op);
 
         op.await();
         if (op.isSuccess()) {
-            log.info("membership registered: %s => %s:%s",
+            log.debug("membership registered: %s => %s:%s",
                     config.getLocalNode(), pairNode.getHost(), pairNode.getPort());
         } else {
             log.error("failed to register membership");
         }
     }
 
+    // @doc the key a presto node registers under for a Riak node, like
+    // 'riak@127.0.0.1/10.0.0.1:8080'
+    static String registrationKey(String riakNode, HostAddress prestoNode) {
+        return riakNode + "/" + prestoNode;
+    }
+
+    // @doc the registrations for a Riak node like 'riak@127.0.0.1' of those
+    // of the presto nodes that have one, fetched all at once.
+    public List<PairwiseNode> getPairwiseNodes(String riakNode, Collection<HostAddress> prestoNodes)
+            throws InterruptedException, ExecutionException, IOException {
+        List<FetchOperation> ops = new ArrayList<>();
+        for (HostAddress prestoNode : prestoNodes) {
+            FetchOperation op = buildFetchOperation(Namespace.DEFAULT_BUCKET_TYPE, META_BUCKET_NAME,
+                    registrationKey(riakNode, prestoNode));
+            cluster.execute(op);
+            ops.add(op);
+        }
+        List<PairwiseNode> nodes = new ArrayList<>();
+        for (FetchOperation op : ops) {
+            op.await();
+            if (!op.isSuccess()) {
+                throw new IOException("failed to fetch membership of " + riakNode, op.cause());
+            }
+            PairwiseNode latest = null;
+            for (RiakObject o : op.get().getObjectList()) {
+                PairwiseNode node = objectMapper.readValue(o.getValue().toStringUtf8(), PairwiseNode.class);
+                if (latest == null || node.getHeartbeat() > latest.getHeartbeat()) {
+                    latest = node;
+                }
+            }
+            if (latest != null) {
+                nodes.add(latest);
+            }
+        }
+        return nodes;
+    }
+
     public Set<String> getSchemaNames() {
         // TODO: fetch all bucket types from somewhere,
         // maybe from configuration or a key that stores metadata
@@ -193,21 +236,32 @@ public class RiakClient {
 
     public PRTable getTable(SchemaTableName schemaTableName)
             throws InterruptedException, ExecutionException, IOException {
+        return parseTable(schemaTableName, getTableDefinition(schemaTableName));
+    }
+
+    // @doc the table definition as stored in Riak; PRTableCache hashes it
+    // to tell definitions apart.
+    public String getTableDefinition(SchemaTableName schemaTableName)
+            throws InterruptedException, ExecutionException, IOException {
 
         List<RiakObject> objects = getTableRiakObjects(schemaTableName);
         //log.info("RiakClient.getTable(%s)", schemaTableName);
 
         for (RiakObject o : objects) {
             //log.debug("ro: %s", o.getValue().toStringUtf8());
-            PRTable table = objectMapper.readValue(o.getValue().toStringUtf8(), PRTable.class);
-            checkNotNull(table, "table schema (%s) wasn't found.", schemaTableName.getSchemaName());
-            log.debug("table schema found: %s.", table.getName());
-
-            return table;
+            return o.getValue().toStringUtf8();
         }
         throw new TableNotFoundException(schemaTableName, "no siblings for " + schemaTableName.toString());
     }
 
+    public PRTable parseTable(SchemaTableName schemaTableName, String definition)
+            throws IOException {
+        PRTable table = objectMapper.readValue(definition, PRTable.class);
+        checkNotNull(table, "table schema (%s) wasn't found.", schemaTableName.getSchemaName());
+        log.debug("table schema found: %s.", table.getName());
+        return table;
+    }
+
     private List<RiakObject> getTableRiakObjects(SchemaTableName schemaTableName)
             throws InterruptedException, ExecutionException, IOException {
         checkNotNull(schemaTableName, "tableName is null");
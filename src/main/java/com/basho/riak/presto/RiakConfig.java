@@ -15,6 +15,7 @@ package com.basho.riak.presto;
 
 import io.airlift.configuration.Config;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -28,6 +29,25 @@ public class RiakConfig {
     private String localNode = "127.0.0.1";
     private String erlangNodeName = null; // name for distributed erlang like 'presto@127.0.0.1'
     private String erlangCookie = null;
+    private int scanBatchSize = 1000; // objects sent per batch by a fold
+    private long scanBatchBytes = 4 * 1024 * 1024; // or bytes of values per batch
+    private int scanGetWindow = 32; // gets of 2i matches in flight per split
+    private int scanFirstBatchSize = 100; // doubled each batch up to scanBatchSize; 0 for scanBatchSize
+    private int splitsPerVnode = 1; // 0 for as many as needed by splitsPerWorker
+    private int splitsPerWorker = 16;
+    private int erlangMaxPendingCalls = 64; // concurrent RPCs from a worker to Riak
+    private long erlangCallWaitMillis = 60000;
+    private long heartbeatMillis = 10000; // presto node registration to Riak
+    private boolean balancedCoverage = false; // see ldna:balanced_coverage_plan/1
+    private long rebalanceMillis = 30000; // how long a balanced plan is used
+    private double hedgeFactor = 0; // 0 for no hedging, see Hedging
+    private long hedgeMinMillis = 1000;
+    private int scanRetries = 2; // of a split whose fold failed, see RetryingStream
+    private long scanRetryBackoffMillis = 500;
+    private int scanRetryMaxKeys = 100000; // kept to skip on retry, see RetryingStream
+    private double indexGetCost = 5; // 0 to always use 2i, see ScanPlanner
+    private long indexSampleKeys = 100000;
+    private long indexStatsTtlMillis = 300000;
 
     public RiakConfig() {
     }
@@ -119,4 +139,212 @@ public class RiakConfig {
         this.erlangCookie = cookie;
         return this;
     }
+
+    @Min(1)
+    public int getScanBatchSize() {
+        return scanBatchSize;
+    }
+
+    @Config("riak.scan.batch-size")
+    public RiakConfig setScanBatchSize(int scanBatchSize) {
+        this.scanBatchSize = scanBatchSize;
+        return this;
+    }
+
+    @Min(1)
+    public long getScanBatchBytes() {
+        return scanBatchBytes;
+    }
+
+    @Config("riak.scan.batch-bytes")
+    public RiakConfig setScanBatchBytes(long scanBatchBytes) {
+        this.scanBatchBytes = scanBatchBytes;
+        return this;
+    }
+
+    @Min(0)
+    public int getScanFirstBatchSize() {
+        return scanFirstBatchSize;
+    }
+
+    @Config("riak.scan.first-batch-size")
+    public RiakConfig setScanFirstBatchSize(int scanFirstBatchSize) {
+        this.scanFirstBatchSize = scanFirstBatchSize;
+        return this;
+    }
+
+    @Min(1)
+    public int getScanGetWindow() {
+        return scanGetWindow;
+    }
+
+    @Config("riak.scan.get-window")
+    public RiakConfig setScanGetWindow(int scanGetWindow) {
+        this.scanGetWindow = scanGetWindow;
+        return this;
+    }
+
+    @Min(1)
+    public int getErlangMaxPendingCalls() {
+        return erlangMaxPendingCalls;
+    }
+
+    @Config("riak.erlang.max-pending-calls")
+    public RiakConfig setErlangMaxPendingCalls(int erlangMaxPendingCalls) {
+        this.erlangMaxPendingCalls = erlangMaxPendingCalls;
+        return this;
+    }
+
+    @Min(1)
+    public long getErlangCallWaitMillis() {
+        return erlangCallWaitMillis;
+    }
+
+    @Config("riak.erlang.call-wait-ms")
+    public RiakConfig setErlangCallWaitMillis(long erlangCallWaitMillis) {
+        this.erlangCallWaitMillis = erlangCallWaitMillis;
+        return this;
+    }
+
+    @Min(0)
+    public int getSplitsPerVnode() {
+        return splitsPerVnode;
+    }
+
+    @Config("riak.scan.splits-per-vnode")
+    public RiakConfig setSplitsPerVnode(int splitsPerVnode) {
+        this.splitsPerVnode = splitsPerVnode;
+        return this;
+    }
+
+    @Min(1)
+    public int getSplitsPerWorker() {
+        return splitsPerWorker;
+    }
+
+    @Config("riak.scan.splits-per-worker")
+    public RiakConfig setSplitsPerWorker(int splitsPerWorker) {
+        this.splitsPerWorker = splitsPerWorker;
+        return this;
+    }
+
+    @Min(1)
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    @Config("riak.presto.heartbeat-ms")
+    public RiakConfig setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+        return this;
+    }
+
+    public boolean isBalancedCoverage() {
+        return balancedCoverage;
+    }
+
+    @Config("riak.scan.balanced-coverage")
+    public RiakConfig setBalancedCoverage(boolean balancedCoverage) {
+        this.balancedCoverage = balancedCoverage;
+        return this;
+    }
+
+    @Min(1)
+    public long getRebalanceMillis() {
+        return rebalanceMillis;
+    }
+
+    @Config("riak.scan.rebalance-ms")
+    public RiakConfig setRebalanceMillis(long rebalanceMillis) {
+        this.rebalanceMillis = rebalanceMillis;
+        return this;
+    }
+
+    @Min(0)
+    public double getHedgeFactor() {
+        return hedgeFactor;
+    }
+
+    @Config("riak.scan.hedge-factor")
+    public RiakConfig setHedgeFactor(double hedgeFactor) {
+        this.hedgeFactor = hedgeFactor;
+        return this;
+    }
+
+    @Min(0)
+    public long getHedgeMinMillis() {
+        return hedgeMinMillis;
+    }
+
+    @Config("riak.scan.hedge-min-ms")
+    public RiakConfig setHedgeMinMillis(long hedgeMinMillis) {
+        this.hedgeMinMillis = hedgeMinMillis;
+        return this;
+    }
+
+    @Min(0)
+    public int getScanRetries() {
+        return scanRetries;
+    }
+
+    @Config("riak.scan.retries")
+    public RiakConfig setScanRetries(int scanRetries) {
+        this.scanRetries = scanRetries;
+        return this;
+    }
+
+    @Min(0)
+    public long getScanRetryBackoffMillis() {
+        return scanRetryBackoffMillis;
+    }
+
+    @Config("riak.scan.retry-backoff-ms")
+    public RiakConfig setScanRetryBackoffMillis(long scanRetryBackoffMillis) {
+        this.scanRetryBackoffMillis = scanRetryBackoffMillis;
+        return this;
+    }
+
+    @Min(0)
+    public int getScanRetryMaxKeys() {
+        return scanRetryMaxKeys;
+    }
+
+    @Config("riak.scan.retry-max-keys")
+    public RiakConfig setScanRetryMaxKeys(int scanRetryMaxKeys) {
+        this.scanRetryMaxKeys = scanRetryMaxKeys;
+        return this;
+    }
+
+    @Min(0)
+    public double getIndexGetCost() {
+        return indexGetCost;
+    }
+
+    @Config("riak.scan.index-get-cost")
+    public RiakConfig setIndexGetCost(double indexGetCost) {
+        this.indexGetCost = indexGetCost;
+        return this;
+    }
+
+    @Min(1)
+    public long getIndexSampleKeys() {
+        return indexSampleKeys;
+    }
+
+    @Config("riak.scan.index-sample-keys")
+    public RiakConfig setIndexSampleKeys(long indexSampleKeys) {
+        this.indexSampleKeys = indexSampleKeys;
+        return this;
+    }
+
+    @Min(0)
+    public long getIndexStatsTtlMillis() {
+        return indexStatsTtlMillis;
+    }
+
+    @Config("riak.scan.index-stats-ttl-ms")
+    public RiakConfig setIndexStatsTtlMillis(long indexStatsTtlMillis) {
+        this.indexStatsTtlMillis = indexStatsTtlMillis;
+        return this;
+    }
 }
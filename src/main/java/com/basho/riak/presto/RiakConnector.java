@@ -24,6 +24,7 @@ public class RiakConnector
     private final RiakMetadata metadata;
     private final RiakSplitManager splitManager;
     private final RiakRecordSetProvider recordSetProvider;
+    private final RiakPageSourceProvider pageSourceProvider;
     private final RiakHandleResolver handleResolver;
 
     @Inject
@@ -31,10 +32,12 @@ public class RiakConnector
             RiakMetadata metadata,
             RiakSplitManager splitManager,
             RiakRecordSetProvider recordSetProvider,
+            RiakPageSourceProvider pageSourceProvider,
             RiakHandleResolver handleResolver) {
         this.metadata = checkNotNull(metadata, "metadata is null");
         this.splitManager = checkNotNull(splitManager, "splitManager is null");
         this.recordSetProvider = checkNotNull(recordSetProvider, "recordSetProvider is null");
+        this.pageSourceProvider = checkNotNull(pageSourceProvider, "pageSourceProvider is null");
         this.handleResolver = checkNotNull(handleResolver, "handleResolver is null");
     }
 
@@ -56,9 +59,7 @@ public class RiakConnector
 
     @Override
     public ConnectorPageSourceProvider getPageSourceProvider() {
-        // TODO: create ConnectorPageSourceProvider and ConnectorPageSource
-        // for paging optimization
-        throw new UnsupportedOperationException();
+        return pageSourceProvider;
     }
 
     @Override
@@ -15,13 +15,17 @@ package com.basho.riak.presto;
 
 import com.facebook.presto.spi.Connector;
 import com.facebook.presto.spi.ConnectorFactory;
+import com.facebook.presto.spi.NodeManager;
 import com.facebook.presto.spi.type.TypeManager;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Injector;
 import io.airlift.bootstrap.Bootstrap;
 import io.airlift.json.JsonModule;
+import org.weakref.jmx.guice.MBeanModule;
 
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -30,10 +34,13 @@ public class RiakConnectorFactory
         implements ConnectorFactory {
 
     private final TypeManager typeManager;
+    private final NodeManager nodeManager;
     private final Map<String, String> optionalConfig;
 
-    public RiakConnectorFactory(TypeManager typeManager, Map<String, String> optionalConfig) {
+    public RiakConnectorFactory(TypeManager typeManager, NodeManager nodeManager,
+                                Map<String, String> optionalConfig) {
         this.typeManager = checkNotNull(typeManager, "typeManager is given as null");
+        this.nodeManager = checkNotNull(nodeManager, "nodeManager is given as null");
         this.optionalConfig = ImmutableMap.copyOf(checkNotNull(optionalConfig, "optionalConfig is null"));
     }
 
@@ -51,7 +58,9 @@ public class RiakConnectorFactory
             // A plugin is not required to use Guice; it is just very convenient
             Bootstrap app = new Bootstrap(
                     new JsonModule(),
-                    new RiakModule(connectorId, typeManager));
+                    new MBeanModule(),
+                    binder -> binder.bind(MBeanServer.class).toInstance(ManagementFactory.getPlatformMBeanServer()),
+                    new RiakModule(connectorId, typeManager, nodeManager));
 
             Injector injector = app
                     .strictConfig()
@@ -14,6 +14,7 @@
 package com.basho.riak.presto;
 
 import com.basho.riak.presto.models.PRTable;
+import com.facebook.presto.spi.NodeManager;
 import com.facebook.presto.spi.type.Type;
 import com.facebook.presto.spi.type.TypeManager;
 import com.fasterxml.jackson.databind.DeserializationContext;
@@ -33,22 +34,27 @@ import static io.airlift.configuration.ConfigurationModule.bindConfig;
 import static io.airlift.json.JsonBinder.jsonBinder;
 import static io.airlift.json.JsonCodec.listJsonCodec;
 import static io.airlift.json.JsonCodecBinder.jsonCodecBinder;
+import static org.weakref.jmx.ObjectNames.generatedNameOf;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class RiakModule
         implements Module {
     private final String connectorId;
     private final TypeManager typeManager;
+    private final NodeManager nodeManager;
 
     @Inject
-    public RiakModule(String connectorId, TypeManager typeManager) {
+    public RiakModule(String connectorId, TypeManager typeManager, NodeManager nodeManager) {
         this.connectorId = checkNotNull(connectorId, "connector id is null");
         this.typeManager = checkNotNull(typeManager, "type manager is null");
+        this.nodeManager = checkNotNull(nodeManager, "node manager is null");
     }
 
     @Override
     public void configure(Binder binder) {
 
         binder.bind(TypeManager.class).toInstance(typeManager);
+        binder.bind(NodeManager.class).toInstance(nodeManager);
 
         binder.bind(RiakConnector.class).in(Scopes.SINGLETON);
         binder.bind(RiakConnectorId.class).toInstance(new RiakConnectorId(connectorId));
@@ -58,11 +64,22 @@ public class RiakModule
 
         binder.bind(DirectConnection.class).in(Scopes.SINGLETON);
         binder.bind(RiakSplitManager.class).in(Scopes.SINGLETON);
+        binder.bind(CoveragePlanCache.class).in(Scopes.SINGLETON);
+        binder.bind(PRTableCache.class).in(Scopes.SINGLETON);
+        binder.bind(Hedging.class).in(Scopes.SINGLETON);
+        binder.bind(ScanPlanner.class).in(Scopes.SINGLETON);
+        binder.bind(NodeRegistry.class).asEagerSingleton(); // heartbeats from every node
         binder.bind(DirectConnection.class).in(Scopes.SINGLETON);
         binder.bind(RiakRecordSetProvider.class).in(Scopes.SINGLETON);
+        binder.bind(RiakPageSourceProvider.class).in(Scopes.SINGLETON);
         binder.bind(RiakHandleResolver.class).in(Scopes.SINGLETON);
         bindConfig(binder).to(RiakConfig.class);
 
+        // metrics, one MBean of each per catalog
+        newExporter(binder).export(DirectConnection.class).as(generatedNameOf(DirectConnection.class, connectorId));
+        newExporter(binder).export(CoveragePlanCache.class).as(generatedNameOf(CoveragePlanCache.class, connectorId));
+        newExporter(binder).export(Hedging.class).as(generatedNameOf(Hedging.class, connectorId));
+
         binder.bind(ObjectMapper.class).toProvider(ObjectMapperProvider.class);
         jsonBinder(binder).addDeserializerBinding(Type.class).to(TypeDeserializer.class);
         jsonCodecBinder(binder).bindMapJsonCodec(String.class, listJsonCodec(PRTable.class));
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.CoverageSplit;
+import com.basho.riak.presto.models.PRTable;
+import com.basho.riak.presto.models.RiakColumnHandle;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.facebook.presto.spi.ConnectorPageSourceProvider;
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.spi.type.Type;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+import javax.inject.Inject;
+import java.util.List;
+
+import static com.facebook.presto.spi.StandardErrorCode.NOT_SUPPORTED;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+
+// @doc supplies CoveragePageSource, which Presto prefers over the
+// RecordCursor of RiakRecordSetProvider.
+public class RiakPageSourceProvider
+        implements ConnectorPageSourceProvider {
+    private final String connectorId;
+    private final RiakConfig riakConfig;
+    private final DirectConnection directConnection;
+    private final PRTableCache tableCache;
+    private final Hedging hedging;
+
+    @Inject
+    public RiakPageSourceProvider(RiakConnectorId connectorId,
+                                  RiakConfig riakConfig,
+                                  DirectConnection directConnection,
+                                  PRTableCache tableCache,
+                                  Hedging hedging) {
+        this.connectorId = checkNotNull(connectorId, "connectorId is null").toString();
+        this.riakConfig = checkNotNull(riakConfig);
+        this.directConnection = checkNotNull(directConnection);
+        this.tableCache = checkNotNull(tableCache);
+        this.hedging = checkNotNull(hedging);
+    }
+
+    @Override
+    public ConnectorPageSource createPageSource(ConnectorSplit split,
+                                                List<ColumnHandle> columns) {
+        checkNotNull(split, "split is null");
+        checkArgument(split instanceof CoverageSplit);
+
+        CoverageSplit coverageSplit = (CoverageSplit) split;
+        checkArgument(coverageSplit.getTableHandle().getConnectorId()
+                .equals(connectorId));
+
+        ImmutableList.Builder<RiakColumnHandle> handles = ImmutableList.builder();
+        for (ColumnHandle handle : columns) {
+            checkArgument(handle instanceof RiakColumnHandle);
+            RiakColumnHandle riakColumnHandle = (RiakColumnHandle) handle;
+            Type type = riakColumnHandle.getColumn().getType();
+            if (!CoveragePageSource.isSupported(type)) {
+                throw new PrestoException(NOT_SUPPORTED, format("column %s has type %s, which Riak tables don't support",
+                        riakColumnHandle.getColumn().getName(), type));
+            }
+            handles.add(riakColumnHandle);
+        }
+        List<RiakColumnHandle> columnHandles = handles.build();
+        PRTable table = tableCache.get(
+                RiakRecordSetProvider.parentSchemaTable(coverageSplit.getTableHandle()),
+                coverageSplit.getTableVersion());
+
+        try {
+            CoverageRecordCursor cursor = new CoverageRecordCursor(coverageSplit,
+                    table,
+                    columnHandles,
+                    coverageSplit.getTupleDomain(),
+                    directConnection,
+                    FoldOptions.fromConfig(riakConfig),
+                    hedging);
+            return new CoveragePageSource(cursor, columnHandles);
+        } catch (OtpErlangDecodeException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
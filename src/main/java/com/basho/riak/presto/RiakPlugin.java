@@ -14,6 +14,7 @@
 package com.basho.riak.presto;
 
 import com.facebook.presto.spi.ConnectorFactory;
+import com.facebook.presto.spi.NodeManager;
 import com.facebook.presto.spi.Plugin;
 import com.facebook.presto.spi.type.TypeManager;
 import com.google.common.collect.ImmutableList;
@@ -29,6 +30,7 @@ public class RiakPlugin
         implements Plugin {
 
     private TypeManager typeManager;
+    private NodeManager nodeManager;
     private Map<String, String> optionalConfig = ImmutableMap.of();
 
     public synchronized Map<String, String> getOptionalConfig() {
@@ -43,7 +45,7 @@ public class RiakPlugin
     @Override
     public <T> List<T> getServices(Class<T> type) {
         if (type == ConnectorFactory.class) {
-            return ImmutableList.of(type.cast(new RiakConnectorFactory(typeManager, getOptionalConfig())));
+            return ImmutableList.of(type.cast(new RiakConnectorFactory(typeManager, nodeManager, getOptionalConfig())));
         }
         return ImmutableList.of();
     }
@@ -52,4 +54,9 @@ public class RiakPlugin
     public synchronized void setTypeManager(TypeManager typeManager) {
         this.typeManager = typeManager;
     }
+
+    @Inject
+    public synchronized void setNodeManager(NodeManager nodeManager) {
+        this.nodeManager = nodeManager;
+    }
 }
@@ -14,12 +14,15 @@
 package com.basho.riak.presto;
 
 import com.basho.riak.presto.models.CoverageSplit;
+import com.basho.riak.presto.models.PRSubTable;
 import com.basho.riak.presto.models.PRTable;
 import com.basho.riak.presto.models.RiakColumnHandle;
+import com.basho.riak.presto.models.RiakTableHandle;
 import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorRecordSetProvider;
 import com.facebook.presto.spi.ConnectorSplit;
 import com.facebook.presto.spi.RecordSet;
+import com.facebook.presto.spi.SchemaTableName;
 import com.google.common.collect.ImmutableList;
 import io.airlift.log.Logger;
 
@@ -35,14 +38,20 @@ public class RiakRecordSetProvider
     private final String connectorId;
     private final RiakConfig riakConfig;
     private final DirectConnection directConnection;
+    private final PRTableCache tableCache;
+    private final Hedging hedging;
 
     @Inject
     public RiakRecordSetProvider(RiakConnectorId connectorId,
                                  RiakConfig riakConfig,
-                                 DirectConnection directConnection) {
+                                 DirectConnection directConnection,
+                                 PRTableCache tableCache,
+                                 Hedging hedging) {
         this.connectorId = checkNotNull(connectorId, "connectorId is null").toString();
         this.riakConfig = checkNotNull(riakConfig);
         this.directConnection = checkNotNull(directConnection);
+        this.tableCache = checkNotNull(tableCache);
+        this.hedging = checkNotNull(hedging);
 
         log.debug(riakConfig.getHost());
         log.debug(riakConfig.getErlangCookie());
@@ -61,22 +70,28 @@ public class RiakRecordSetProvider
         checkArgument(coverageSplit.getTableHandle().getConnectorId()
                 .equals(connectorId));
 
-        PRTable table = coverageSplit.getTable();
+        PRTable table = tableCache.get(parentSchemaTable(coverageSplit.getTableHandle()),
+                coverageSplit.getTableVersion());
 
         ImmutableList.Builder<RiakColumnHandle> handles = ImmutableList.builder();
         for (ColumnHandle handle : columns) {
             checkArgument(handle instanceof RiakColumnHandle);
             RiakColumnHandle riakColumnHandle = (RiakColumnHandle) handle;
-            boolean has2i = false;//TODO: table.hasIndex(riakColumnHandle.getColumn().getName());
-            riakColumnHandle.getColumn().setIndex(has2i);
             handles.add(riakColumnHandle);
         }
 
         //log.debug("supplying CoverageRecordSet");
         return new CoverageRecordSet(coverageSplit,
+                table,
                 handles.build(),
                 riakConfig,
                 coverageSplit.getTupleDomain(),
-                directConnection);
+                directConnection,
+                hedging);
+    }
+
+    static SchemaTableName parentSchemaTable(RiakTableHandle handle) {
+        return new SchemaTableName(handle.getSchemaName(),
+                PRSubTable.parentTableName(handle.getTableName()));
     }
 }
@@ -14,35 +14,62 @@
 package com.basho.riak.presto;
 
 import com.basho.riak.presto.models.*;
+import com.ericsson.otp.erlang.*;
 import com.facebook.presto.spi.*;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.json.JsonCodecFactory;
 import io.airlift.log.Logger;
+import io.airlift.slice.Slice;
 
 import javax.inject.Inject;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.*;
 
 public class RiakSplitManager
         implements ConnectorSplitManager {
     private static final Logger log = Logger.get(RiakSplitManager.class);
+    private static final int MAX_LOOKUP_KEYS = 10000; // more are fetched via coverage
     private final String connectorId;
     private final RiakClient riakClient;
     private final RiakConfig riakConfig;
     private final DirectConnection directConnection;
+    private final CoveragePlanCache coveragePlanCache;
+    private final PRTableCache tableCache;
+    private final NodeRegistry nodeRegistry;
+    private final NodeManager nodeManager;
+    private final ScanPlanner scanPlanner;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("riak-split-planner-%d").build());
 
 
     @Inject
     public RiakSplitManager(RiakConnectorId connectorId, RiakClient riakClient,
-                            RiakConfig config, DirectConnection directConnection) {
+                            RiakConfig config, DirectConnection directConnection,
+                            CoveragePlanCache coveragePlanCache, PRTableCache tableCache,
+                            NodeRegistry nodeRegistry, NodeManager nodeManager,
+                            ScanPlanner scanPlanner) {
         this.connectorId = checkNotNull(connectorId, "connectorId is null").toString();
         this.riakClient = checkNotNull(riakClient, "client is null");
         this.riakConfig = checkNotNull(config);
         this.directConnection = checkNotNull(directConnection);
+        this.coveragePlanCache = checkNotNull(coveragePlanCache);
+        this.tableCache = checkNotNull(tableCache);
+        this.nodeRegistry = checkNotNull(nodeRegistry);
+        this.nodeManager = checkNotNull(nodeManager);
+        this.scanPlanner = checkNotNull(scanPlanner);
     }
 
 
@@ -83,6 +110,62 @@ public class RiakSplitManager
         }
     }
 
+    // @doc keys of a __key = 'x' or __key IN (...) predicate, or null if the
+    // predicate is anything else.
+    static List<byte[]> lookupKeys(TupleDomain<ColumnHandle> tupleDomain) {
+        if (tupleDomain.isAll() || tupleDomain.isNone()) {
+            return null;
+        }
+        for (Map.Entry<ColumnHandle, Domain> entry : tupleDomain.getDomains().entrySet()) {
+            RiakColumnHandle column = (RiakColumnHandle) entry.getKey();
+            if (!column.getColumn().getName().equals(RiakColumnHandle.PKEY_COLUMN_NAME)) {
+                continue;
+            }
+            Domain domain = entry.getValue();
+            if (domain.isNullAllowed() || domain.getRanges().getRangeCount() > MAX_LOOKUP_KEYS) {
+                return null;
+            }
+            List<byte[]> keys = Lists.newArrayList();
+            for (Range range : domain.getRanges()) {
+                if (!range.isSingleValue()) {
+                    return null;
+                }
+                keys.add(((Slice) range.getSingleValue()).getBytes());
+            }
+            return keys;
+        }
+        return null;
+    }
+
+    // @doc one split per vnode owning some of the keys, which gets just
+    // those keys; no coverage plan is needed.
+    private List<SplitTask> keyLookupSplits(RiakTableHandle table, List<byte[]> keys)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        String bucket = PRSubTable.bucketName(table.getTableName());
+        // [{VNode, Keys}]
+        OtpErlangList owners = directConnection.keyOwners(
+                table.getSchemaName().getBytes(), bucket.getBytes(), keys);
+        List<SplitTask> splitTasks = Lists.newArrayList();
+        for (OtpErlangObject o : owners) {
+            OtpErlangTuple owner = (OtpErlangTuple) o;
+            splitTasks.add(SplitTask.keyLookup((OtpErlangTuple) owner.elementAt(0),
+                    (OtpErlangList) owner.elementAt(1)));
+        }
+        log.debug("%d keys of %s are on %d vnodes", keys.size(), table, splitTasks.size());
+        return splitTasks;
+    }
+
+    // @doc riak.scan.splits-per-vnode, or with 0 as many as it takes to give
+    // every worker riak.scan.splits-per-worker splits
+    private int slicesPerVnode(int vnodes) {
+        if (riakConfig.getSplitsPerVnode() > 0) {
+            return riakConfig.getSplitsPerVnode();
+        }
+        int workers = nodeManager.getActiveNodes().size();
+        int splits = workers * riakConfig.getSplitsPerWorker();
+        return Math.max(1, (splits + vnodes - 1) / Math.max(1, vnodes));
+    }
+
     // TODO: return correct splits from partitions
     @Override
     public ConnectorSplitSource getPartitionSplits(ConnectorTableHandle tableHandle,
@@ -94,71 +177,131 @@ public class RiakSplitManager
         checkArgument(partition instanceof RiakPartition, "partition is not an instance of RiakPartition");
         //RiakPartition riakPartition = (RiakPartition) partition;
 
-        RiakTableHandle riakTableHandle = (RiakTableHandle) tableHandle;
+        final RiakTableHandle riakTableHandle = (RiakTableHandle) tableHandle;
+        final TupleDomain<ColumnHandle> tupleDomain = partition.getTupleDomain();
+
+        // planning may take a while (the table, then the coverage plan from Riak),
+        // and Presto can start on the first splits meanwhile
+        final RiakSplitSource splitSource = new RiakSplitSource(connectorId);
+        splitSource.setPlanner(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    planSplits(riakTableHandle, tupleDomain, splitSource);
+                    splitSource.noMoreSplits();
+                } catch (Exception e) {
+                    log.error("failed to make splits of %s: %s", riakTableHandle, e);
+                    splitSource.fail(e);
+                }
+            }
+        }));
+        return splitSource;
+    }
+
+    // @doc hands the splits to splitSource vnode by vnode as they are made.
+    // The 2i plan of the query (see ScanPlanner), which may sample a vnode,
+    // is made on another thread while the table is looked up, and is
+    // waited for only before the first split of a scan is handed out.
+    private void planSplits(final RiakTableHandle riakTableHandle, final TupleDomain<ColumnHandle> tupleDomain,
+                            RiakSplitSource splitSource)
+            throws Exception {
+        String hosts = riakClient.getHosts();
+        log.debug(hosts);
+
+        if (riakConfig.getLocalNode() == null) {
+            // TODO: in Riak connector, you only need single access point for each presto worker???
+            log.error("localNode must be set and working");
+            log.debug(hosts);
+            return;
+        }
+
+        List<byte[]> keys = lookupKeys(tupleDomain);
+        Coverage coverage = null;
+        Future<byte[]> indexQuery = Futures.immediateFuture(null);
+        if (keys == null) {
+            coverage = new Coverage(coveragePlanCache.getPlan());
+            log.debug("coverage plan cache hit rate %.2f", coveragePlanCache.getHitRate());
+            log.debug("print coverage plan==============");
+            log.debug(coverage.toString());
+
+            List<OtpErlangTuple> vnodes = coverage.getVnodes();
+            if (!tupleDomain.isAll() && !vnodes.isEmpty()) {
+                final List<SplitTask> sample = coverage.getSplits(vnodes.get(0), 1);
+                indexQuery = executor.submit(() -> IndexQuery.toBytes(scanPlanner.plan(riakTableHandle.getSchemaName(),
+                        PRSubTable.bucketName(riakTableHandle.getTableName()),
+                        tupleDomain, sample.get(0))));
+            }
+        }
 
         try {
             String parentTable = PRSubTable.parentTableName(riakTableHandle.getTableName());
             SchemaTableName parentSchemaTable = new SchemaTableName(
                     riakTableHandle.getSchemaName(),
                     parentTable);
-            PRTable table = riakClient.getTable(parentSchemaTable);
-
-            log.debug("> %s", table.getColumns().toString());
-            // add all nodes at the cluster here
-            List<ConnectorSplit> splits = Lists.newArrayList();
-            String hosts = riakClient.getHosts();
-            log.debug(hosts);
+            PRTableCache.Entry table;
+            try {
+                table = tableCache.fetch(parentSchemaTable);
+            } catch (Exception e) {
+                // this can happen if table is removed during a query
+                throw new TableNotFoundException(riakTableHandle.toSchemaTableName());
+            }
+            log.debug("> %s", table.getTable().getColumns().toString());
 
-            if (riakConfig.getLocalNode() != null) {
-                // TODO: make coverageSplits here
-
-                //try {
-                DirectConnection conn = directConnection;
-                //conn.connect(riak);
-                //conn.ping();
-                Coverage coverage = new Coverage(conn);
-                coverage.plan();
-                List<SplitTask> splitTasks = coverage.getSplits();
-
-                log.debug("print coverage plan==============");
-                log.debug(coverage.toString());
-
-                for (SplitTask split : splitTasks) {
-                    log.info("============printing split data at " + split.getHost() + "===============");
-                    //log.debug(((OtpErlangObject)split.getTask()).toString());
-                    log.info(split.toString());
-
-                    CoverageSplit coverageSplit = new CoverageSplit(
-                            riakTableHandle, //maybe toplevel or subtable
-                            table, //toplevel PRTable
-                            split.getHost(),
-                            split.toString(),
-                            partition.getTupleDomain());
-
-                    //log.info(new JsonCodecFactory().jsonCodec(CoverageSplit.class).toJson(coverageSplit));
-                    splits.add(coverageSplit);
+            int splits = 0;
+            int remote = 0;
+            if (keys != null) {
+                for (SplitTask split : keyLookupSplits(riakTableHandle, keys)) {
+                    remote += addSplits(riakTableHandle, tupleDomain, table, ImmutableList.of(split), null, splitSource);
+                    splits++;
                 }
             } else {
-                // TODO: in Riak connector, you only need single access point for each presto worker???
-                log.error("localNode must be set and working");
-                log.debug(hosts);
-                //splits.add(new CoverageSplit(connectorId, riakTableHandle.getSchemaName(),
-                //        riakTableHandle.getTableName(), hosts,
-                //        partition.getTupleDomain(),
-                //        ((RiakPartition) partition).getIndexedColumns()));
-
+                List<OtpErlangTuple> vnodes = coverage.getVnodes();
+                Collections.shuffle(vnodes);
+                int slices = slicesPerVnode(vnodes.size());
+                byte[] query = indexQuery.get();
+                for (OtpErlangTuple vnode : vnodes) {
+                    List<SplitTask> splitTasks = coverage.getSplits(vnode, slices);
+                    remote += addSplits(riakTableHandle, tupleDomain, table, splitTasks, query, splitSource);
+                    splits += splitTasks.size();
+                }
             }
-            log.debug("table %s.%s has %d splits.",
+            log.debug("table %s.%s has %d splits, %d without a paired worker.",
                     riakTableHandle.getSchemaName(), riakTableHandle.getTableName(),
-                    splits.size());
+                    splits, remote);
+        } finally {
+            // when the table is gone, or the query was cancelled
+            indexQuery.cancel(true);
+        }
+    }
 
-            Collections.shuffle(splits);
-            return new FixedSplitSource(connectorId, splits);
+    // @doc returns how many of the splits have no paired worker
+    private int addSplits(RiakTableHandle riakTableHandle, TupleDomain<ColumnHandle> tupleDomain,
+                          PRTableCache.Entry table, List<SplitTask> splitTasks, byte[] indexQuery,
+                          RiakSplitSource splitSource) {
+        List<ConnectorSplit> splits = Lists.newArrayList();
+        int remote = 0;
+        for (SplitTask split : splitTasks) {
+            // run on a worker paired with the vnode's Riak node, taking them
+            // in turn; without one, anywhere, preferably near the Riak host
+            List<HostAddress> workers = nodeRegistry.getWorkers(split.getNode());
+            HostAddress worker = workers.isEmpty() ? null
+                    : workers.get((nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.size());
+            String address = worker == null ? split.getHost() : worker.toString();
+            if (worker == null) {
+                remote++;
+            }
+            log.debug("split at %s: %s", address, split);
 
-        } catch (Exception e) {
-            throw new TableNotFoundException(riakTableHandle.toSchemaTableName());
+            splits.add(new CoverageSplit(
+                    riakTableHandle, //maybe toplevel or subtable
+                    table.getVersion(), //of toplevel PRTable
+                    address,
+                    worker == null,
+                    split.toBytes(),
+                    tupleDomain,
+                    indexQuery));
         }
-        // this can happen if table is removed during a query
-
-     }
+        splitSource.addSplits(splits);
+        return remote;
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.ConnectorSplitSource;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+// @doc splits handed to Presto while they are still being made: a planner
+// running on another thread adds them with addSplits() as it goes, so that
+// the first tasks can be scheduled before the last split is known.
+public class RiakSplitSource
+        implements ConnectorSplitSource {
+    private final String dataSourceName;
+    private final Deque<ConnectorSplit> queue = new ArrayDeque<>();
+    private CompletableFuture<List<ConnectorSplit>> waiting;
+    private int waitingMaxSize;
+    private boolean noMoreSplits = false;
+    private Throwable failure;
+    private Future<?> planner;
+
+    public RiakSplitSource(String dataSourceName) {
+        this.dataSourceName = checkNotNull(dataSourceName, "dataSourceName is null");
+    }
+
+    // @doc to be cancelled on close()
+    public synchronized void setPlanner(Future<?> planner) {
+        this.planner = planner;
+    }
+
+    public synchronized void addSplits(List<? extends ConnectorSplit> splits) {
+        queue.addAll(splits);
+        notifyWaiting();
+    }
+
+    public synchronized void noMoreSplits() {
+        noMoreSplits = true;
+        notifyWaiting();
+    }
+
+    public synchronized void fail(Throwable e) {
+        failure = checkNotNull(e);
+        notifyWaiting();
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+    @Override
+    public synchronized CompletableFuture<List<ConnectorSplit>> getNextBatch(int maxSize) {
+        checkState(waiting == null || waiting.isDone(), "getNextBatch called before the last batch arrived");
+        CompletableFuture<List<ConnectorSplit>> batch = new CompletableFuture<>();
+        waiting = batch;
+        waitingMaxSize = maxSize;
+        notifyWaiting();
+        return batch;
+    }
+
+    private void notifyWaiting() {
+        if (waiting == null || waiting.isDone()) {
+            return;
+        }
+        if (failure != null) {
+            waiting.completeExceptionally(failure);
+        } else if (!queue.isEmpty() || noMoreSplits) {
+            ImmutableList.Builder<ConnectorSplit> batch = ImmutableList.builder();
+            for (int i = 0; i < waitingMaxSize && !queue.isEmpty(); i++) {
+                batch.add(queue.poll());
+            }
+            waiting.complete(batch.build());
+        }
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return failure == null && noMoreSplits && queue.isEmpty();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (planner != null) {
+            planner.cancel(true);
+        }
+        queue.clear();
+    }
+}
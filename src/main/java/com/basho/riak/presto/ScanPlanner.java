@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.TupleDomain;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import io.airlift.log.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// @doc picks how the splits of a query read their vnodes: a plain fold, a
+// 2i lookup on one column, or the intersection of lookups on several. A
+// key fetched through 2i costs riak.scan.index-get-cost times as much as
+// an object folded, so an index wins only when it matches few enough keys.
+// Those are estimated on one vnode of the plan, which holds a fair sample
+// of the bucket as keys are spread by their hash: each indexed field is
+// read there once into an IndexHistogram, which estimates the keys of a
+// filter on it whatever its values, and the keys of the bucket are
+// counted. Both are kept for riak.scan.index-stats-ttl-ms, so that a
+// bucket queried again, with the same values or others, is planned
+// without asking Riak; only a range beyond what was read of a big index
+// is counted for the query at hand.
+public class ScanPlanner {
+    private static final Logger log = Logger.get(ScanPlanner.class);
+    // reading an index entry, relative to folding an object
+    static final double TERM_COST = 0.1;
+    // ranges of terms of an IndexHistogram
+    static final int HISTOGRAM_RANGES = 256;
+
+    private final DirectConnection directConnection;
+    private final double getCost;
+    private final long sampleKeys;
+    private final Cache<String, Total> totals; // by bucket
+    private final Cache<String, IndexHistogram> histograms; // by bucket and field
+
+    @Inject
+    public ScanPlanner(RiakConfig config, DirectConnection directConnection) {
+        checkNotNull(config, "config is null");
+        this.directConnection = checkNotNull(directConnection, "directConnection is null");
+        this.getCost = config.getIndexGetCost();
+        this.sampleKeys = config.getIndexSampleKeys();
+        this.totals = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getIndexStatsTtlMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(1000)
+                .build();
+        this.histograms = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getIndexStatsTtlMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(1000)
+                .build();
+    }
+
+    // @doc the {query, Q} of ldna:start_fold/4 for the splits of a table
+    // whose vnodes are like the one of sample, or null to fold them
+    public OtpErlangTuple plan(String schemaName, String bucket,
+                               TupleDomain<ColumnHandle> tupleDomain, SplitTask sample) {
+        List<OtpErlangTuple> candidates = IndexQuery.candidates(tupleDomain);
+        if (candidates.isEmpty() || getCost == 0 || sample == null) {
+            return IndexQuery.encode(tupleDomain);
+        }
+        long[] counts;
+        Total total;
+        try {
+            counts = estimate(schemaName, bucket, candidates, sample);
+            total = total(schemaName, bucket, counts, sample);
+        } catch (IOException | OtpErlangExit | OtpAuthException | OtpErlangRangeException e) {
+            log.warn("no index statistics of %s.%s, using 2i: %s", schemaName, bucket, e);
+            return IndexQuery.encode(tupleDomain);
+        }
+
+        int[] chosen = choose(total.count, total.capped, counts, sampleKeys, getCost);
+        log.info("%s.%s: %s%d keys, index estimates %s: %s", schemaName, bucket, total.capped ? "at least " : "",
+                total.count, Arrays.toString(counts), chosen.length == 0 ? "fold" : "2i on " + Arrays.toString(chosen));
+        if (chosen.length == 0) {
+            return null;
+        }
+        List<OtpErlangTuple> queries = new ArrayList<>();
+        for (int i : chosen) {
+            queries.add(candidates.get(i));
+        }
+        return IndexQuery.intersect(queries);
+    }
+
+    // the keys each candidate matches, from the histogram of its field
+    private long[] estimate(String schemaName, String bucket, List<OtpErlangTuple> candidates, SplitTask sample)
+            throws IOException, OtpErlangExit, OtpAuthException, OtpErlangRangeException {
+        long[] counts = new long[candidates.size()];
+        List<Integer> unknown = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram(schemaName, bucket, IndexQuery.field(candidates.get(i)), sample)
+                    .estimate(candidates.get(i));
+            if (counts[i] == IndexHistogram.UNKNOWN) {
+                unknown.add(i);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            List<OtpErlangTuple> queries = new ArrayList<>();
+            for (int i : unknown) {
+                queries.add(candidates.get(i));
+            }
+            OtpErlangTuple result = indexCounts(schemaName, bucket, queries, sampleKeys, sample);
+            OtpErlangList c = (OtpErlangList) result.elementAt(2);
+            for (int k = 0; k < unknown.size(); k++) {
+                counts[unknown.get(k)] = ((OtpErlangLong) c.elementAt(k)).longValue();
+            }
+            remember(bucketKey(schemaName, bucket), toTotal(result));
+        }
+        return counts;
+    }
+
+    private IndexHistogram histogram(String schemaName, String bucket, OtpErlangObject field, SplitTask sample)
+            throws IOException, OtpErlangExit, OtpAuthException, OtpErlangRangeException {
+        String key = bucketKey(schemaName, bucket) + " "
+                + new String(((OtpErlangBinary) field).binaryValue(), StandardCharsets.UTF_8);
+        IndexHistogram histogram = histograms.getIfPresent(key);
+        if (histogram == null) {
+            histogram = IndexHistogram.fromErlang(directConnection.indexHistogram(schemaName.getBytes(),
+                    bucket.getBytes(), vnode(sample), filterVnodes(sample), field, sampleKeys, HISTOGRAM_RANGES));
+            log.debug("%s: read in %s", key, vnode(sample));
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    // the keys of the bucket, counted as far as it takes to tell a fold
+    // from the cheapest index
+    private Total total(String schemaName, String bucket, long[] counts, SplitTask sample)
+            throws IOException, OtpErlangExit, OtpAuthException, OtpErlangRangeException {
+        long needed = sampleKeys;
+        for (long c : counts) {
+            if (c < sampleKeys) {
+                needed = Math.max(needed, (long) ((getCost + TERM_COST) * c) + 1);
+            }
+        }
+        String key = bucketKey(schemaName, bucket);
+        Total total = totals.getIfPresent(key);
+        if (total == null || (total.capped && total.count < needed)) {
+            total = remember(key, toTotal(indexCounts(schemaName, bucket,
+                    ImmutableList.<OtpErlangTuple>of(), needed, sample)));
+        }
+        return total;
+    }
+
+    private OtpErlangTuple indexCounts(String schemaName, String bucket, List<OtpErlangTuple> queries,
+                                       long max, SplitTask sample)
+            throws IOException, OtpErlangExit, OtpAuthException {
+        log.debug("%s.%s: counting %s in %s", schemaName, bucket, queries, vnode(sample));
+        return directConnection.indexCounts(schemaName.getBytes(), bucket.getBytes(),
+                vnode(sample), filterVnodes(sample), queries, max, getCost + TERM_COST);
+    }
+
+    // keeps whichever of total and the one cached tells more
+    private Total remember(String key, Total total) {
+        Total cached = totals.getIfPresent(key);
+        if (cached != null && (!cached.capped || (total.capped && cached.count >= total.count))) {
+            return cached;
+        }
+        totals.put(key, total);
+        return total;
+    }
+
+    private static Total toTotal(OtpErlangTuple indexCounts)
+            throws OtpErlangRangeException {
+        return new Total(((OtpErlangLong) indexCounts.elementAt(0)).longValue(),
+                ((OtpErlangAtom) indexCounts.elementAt(1)).booleanValue());
+    }
+
+    private static OtpErlangTuple vnode(SplitTask sample) {
+        return (OtpErlangTuple) sample.getTask().elementAt(0);
+    }
+
+    private static OtpErlangList filterVnodes(SplitTask sample) {
+        return (OtpErlangList) sample.getTask().elementAt(1);
+    }
+
+    private static String bucketKey(String schemaName, String bucket) {
+        return schemaName + "." + bucket;
+    }
+
+    // @doc choose() with exact counts
+    static int[] choose(long total, long[] counts, double getCost) {
+        return choose(total, false, counts, Long.MAX_VALUE, getCost);
+    }
+
+    // @doc the candidates to intersect, most selective first, or none to
+    // fold: of the total keys of a vnode, counts[i] match candidate i. Keys
+    // matching several candidates are estimated as if they were independent.
+    // A count of max or more means at least that many, so such a candidate
+    // is never picked; with capped, there are at least total keys, which
+    // makes a fold at least as costly as estimated and an intersection at
+    // most as selective.
+    static int[] choose(long total, boolean capped, long[] counts, long max, double getCost) {
+        List<Integer> usable = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < max) {
+                usable.add(i);
+            }
+        }
+        Integer[] order = usable.toArray(new Integer[usable.size()]);
+        Arrays.sort(order, (a, b) -> Long.compare(counts[a], counts[b]));
+
+        double best = total; // of the fold, or less than it if capped
+        int bestCount = 0;
+        double fetched = total;
+        double scanned = 0;
+        for (int k = 0; k < order.length; k++) {
+            long c = Math.min(counts[order[k]], total);
+            fetched = k == 0 ? c : (total == 0 ? 0 : fetched * c / total);
+            scanned += c;
+            double cost = getCost * fetched + TERM_COST * scanned;
+            if (cost < best) {
+                best = cost;
+                bestCount = k + 1;
+            }
+        }
+        int[] chosen = new int[bestCount];
+        for (int k = 0; k < bestCount; k++) {
+            chosen[k] = order[k];
+        }
+        return chosen;
+    }
+
+    private static class Total {
+        private final long count;
+        private final boolean capped;
+
+        Total(long count, boolean capped) {
+            this.count = count;
+            this.capped = capped;
+        }
+    }
+}
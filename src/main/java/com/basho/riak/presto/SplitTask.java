@@ -20,12 +20,17 @@ import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by kuenishi on 14/03/27.
  */
 public class SplitTask {
     private final String host;
-    private final OtpErlangTuple task; // OtpErlangObject[] a = {vnode, filterVnodes};
+    // {vnode, filterVnodes}, {vnode, filterVnodes, {Slice, Slices}} or,
+    // for point lookups, {vnode, [], {keys, Keys}}
+    private final OtpErlangTuple task;
 
 
     public SplitTask(String node, OtpErlangTuple task) {
@@ -36,8 +41,12 @@ public class SplitTask {
     // fromString(String)
     public SplitTask(String data)
             throws OtpErlangDecodeException, DecoderException {
+        this(Base64.decodeBase64(Hex.decodeHex(data.toCharArray())));
+    }
 
-        byte[] binary = Base64.decodeBase64(Hex.decodeHex(data.toCharArray()));
+    // @doc from the external term format, as CoverageSplit carries it
+    public SplitTask(byte[] binary)
+            throws OtpErlangDecodeException {
         task = (OtpErlangTuple) binary2term(binary);
         // task = {vnode, filterVnodes}
         OtpErlangTuple vnode = (OtpErlangTuple) task.elementAt(0);
@@ -57,12 +66,22 @@ public class SplitTask {
         return host;
     }
 
+    // @doc the Riak node owning the vnode, like 'riak@127.0.0.1'
+    public String getNode() {
+        OtpErlangTuple vnode = (OtpErlangTuple) task.elementAt(0);
+        return ((OtpErlangAtom) vnode.elementAt(1)).atomValue();
+    }
+
     public String toString() {
         byte[] binary = term2binary(task);
         byte[] b = Base64.encodeBase64(binary);
         return Hex.encodeHexString(b);
     }
 
+    public byte[] toBytes() {
+        return term2binary(task);
+    }
+
     public byte[] term2binary(OtpErlangObject o) {
         OtpOutputStream oos = new OtpOutputStream();
         oos.write_any(o);
@@ -79,39 +98,140 @@ public class SplitTask {
         return this.task;
     }
 
-    public OtpErlangList fetchAllData(DirectConnection conn, String schemaName, String tableName)
-            throws OtpErlangDecodeException, OtpAuthException, OtpErlangExit {
-        OtpErlangTuple t = (OtpErlangTuple) task;
-        OtpErlangTuple vnode = (OtpErlangTuple) t.elementAt(0);
-        OtpErlangList filterVnodes = (OtpErlangList) t.elementAt(1);
+    // @doc this split covers keys with erlang:phash2(Key, getSliceCount()) ==
+    // getSliceIndex() in its vnode; the whole vnode when the count is 1.
+    public int getSliceIndex() {
+        OtpErlangTuple slice = extra();
+        if (slice == null || !(slice.elementAt(0) instanceof OtpErlangLong)) {
+            return 0;
+        }
+        return intValue(slice.elementAt(0));
+    }
+
+    public int getSliceCount() {
+        OtpErlangTuple slice = extra();
+        if (slice == null || !(slice.elementAt(0) instanceof OtpErlangLong)) {
+            return 1;
+        }
+        return intValue(slice.elementAt(1));
+    }
+
+    // @doc a split of a point lookup gets just these keys from its vnode;
+    // null for a split covering the vnode.
+    public OtpErlangList getKeys() {
+        OtpErlangTuple keys = extra();
+        if (keys == null || !keys.elementAt(0).equals(new OtpErlangAtom("keys"))) {
+            return null;
+        }
+        return (OtpErlangList) keys.elementAt(1);
+    }
+
+    public static SplitTask keyLookup(OtpErlangTuple vnode, OtpErlangList keys) {
+        OtpErlangObject[] k = {new OtpErlangAtom("keys"), keys};
+        OtpErlangObject[] t = {vnode, new OtpErlangList(), new OtpErlangTuple(k)};
+        return new SplitTask(((OtpErlangAtom) vnode.elementAt(1)).atomValue(), new OtpErlangTuple(t));
+    }
+
+    // @doc splits folding the keys of this one from vnodes on other nodes,
+    // for when its vnode is slow or down; empty when there are none. The
+    // keys of a point lookup are split among them, each in just one.
+    public List<SplitTask> getAlternates(DirectConnection conn, String schemaName, String tableName)
+            throws java.io.IOException, OtpAuthException, OtpErlangExit {
+        List<SplitTask> alternates = new ArrayList<>();
+        if (getKeys() != null) {
+            for (OtpErlangObject o : conn.keyAlternates(schemaName.getBytes(), tableName.getBytes(),
+                    (OtpErlangTuple) task.elementAt(0), getKeys())) {
+                OtpErlangTuple alternate = (OtpErlangTuple) o;
+                alternates.add(keyLookup((OtpErlangTuple) alternate.elementAt(0),
+                        (OtpErlangList) alternate.elementAt(1)));
+            }
+            return alternates;
+        }
+        for (OtpErlangObject o : conn.alternates(
+                (OtpErlangTuple) task.elementAt(0), (OtpErlangList) task.elementAt(1))) {
+            OtpErlangTuple alternate = (OtpErlangTuple) o;
+            OtpErlangTuple vnode = (OtpErlangTuple) alternate.elementAt(0);
+            OtpErlangObject[] t = task.arity() < 3
+                    ? new OtpErlangObject[]{vnode, alternate.elementAt(1)}
+                    : new OtpErlangObject[]{vnode, alternate.elementAt(1), task.elementAt(2)};
+            alternates.add(new SplitTask(((OtpErlangAtom) vnode.elementAt(1)).atomValue(),
+                    new OtpErlangTuple(t)));
+        }
+        return alternates;
+    }
+
+    private OtpErlangTuple extra() {
+        if (task.arity() < 3) {
+            return null;
+        }
+        return (OtpErlangTuple) task.elementAt(2);
+    }
 
+    private static int intValue(OtpErlangObject o) {
         try {
-            OtpErlangList riakObjects = conn.processSplit(schemaName.getBytes(), tableName.getBytes(), vnode, filterVnodes);
-            //System.out.println(riakObjects);
-            return riakObjects;
+            return ((OtpErlangLong) o).intValue();
+        } catch (OtpErlangRangeException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // @doc all objects of this split at once; when the vnode fails they are
+    // read from the alternates instead, and the error is thrown if there
+    // are none or they fail as well.
+    public OtpErlangList fetchAllData(DirectConnection conn, String schemaName, String tableName)
+            throws java.io.IOException, OtpErlangDecodeException, OtpAuthException, OtpErlangExit {
+        try {
+            return fetchVnode(conn, schemaName, tableName);
         } catch (java.io.IOException e) {
-            System.err.println(e);
+            List<SplitTask> alternates = getAlternates(conn, schemaName, tableName);
+            if (alternates.isEmpty()) {
+                throw e;
+            }
+            List<OtpErlangObject> riakObjects = new ArrayList<>();
+            for (SplitTask alternate : alternates) {
+                for (OtpErlangObject o : alternate.fetchVnode(conn, schemaName, tableName)) {
+                    riakObjects.add(o);
+                }
+            }
+            return new OtpErlangList(riakObjects.toArray(new OtpErlangObject[riakObjects.size()]));
         }
-        return new OtpErlangList();
+    }
+
+    private OtpErlangList fetchVnode(DirectConnection conn, String schemaName, String tableName)
+            throws java.io.IOException, OtpAuthException, OtpErlangExit {
+        OtpErlangTuple vnode = (OtpErlangTuple) task.elementAt(0);
+        OtpErlangList filterVnodes = (OtpErlangList) task.elementAt(1);
+        return conn.processSplit(schemaName.getBytes(), tableName.getBytes(), vnode, filterVnodes);
+    }
+
+    // @doc starts a batched fold of this split; use FoldStream.next() to read it.
+    public FoldStream startFold(DirectConnection conn, String schemaName, String tableName,
+                                FoldOptions options)
+            throws java.io.IOException, OtpAuthException, OtpErlangExit {
+        OtpErlangTuple vnode = (OtpErlangTuple) task.elementAt(0);
+        OtpErlangList filterVnodes = (OtpErlangList) task.elementAt(1);
+
+        if (getSliceCount() > 1) {
+            options.setSlice(getSliceIndex(), getSliceCount());
+        }
+        if (getKeys() != null) {
+            options.setKeys(getKeys());
+        }
+        OtpErlangPid fold = conn.startFold(schemaName.getBytes(), tableName.getBytes(),
+                vnode, filterVnodes, options.toErlang());
+        return new FoldStream(conn, fold);
     }
 
     public OtpErlangList fetchViaIndex(DirectConnection conn, String schemaName, String tableName,
                                        OtpErlangTuple query)
-            throws OtpErlangDecodeException, OtpAuthException, OtpErlangExit {
+            throws java.io.IOException, OtpErlangDecodeException, OtpAuthException, OtpErlangExit {
         OtpErlangTuple t = (OtpErlangTuple) task;
         OtpErlangTuple vnode = (OtpErlangTuple) t.elementAt(0);
         OtpErlangList filterVnodes = (OtpErlangList) t.elementAt(1);
 
-        try {
-            OtpErlangTuple result = conn.processSplitIndex(schemaName.getBytes(), tableName.getBytes(), vnode,
-                    filterVnodes, query);
-            OtpErlangList riakObjects = (OtpErlangList) result.elementAt(1);
-            //System.out.println(riakObjects);
-            return riakObjects;
-        } catch (java.io.IOException e) {
-            System.err.println(e);
-        }
-        return new OtpErlangList();
+        OtpErlangTuple result = conn.processSplitIndex(schemaName.getBytes(), tableName.getBytes(), vnode,
+                filterVnodes, query);
+        return (OtpErlangList) result.elementAt(1);
     }
 
 }
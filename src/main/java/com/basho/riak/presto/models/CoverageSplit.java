@@ -16,6 +16,8 @@ package com.basho.riak.presto.models;
 
 import com.basho.riak.presto.SplitTask;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
 import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorSplit;
 import com.facebook.presto.spi.HostAddress;
@@ -25,7 +27,6 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
-import org.apache.commons.codec.DecoderException;
 
 import javax.validation.constraints.NotNull;
 import java.util.Arrays;
@@ -38,24 +39,35 @@ public class CoverageSplit implements ConnectorSplit {
     private static final Logger log = Logger.get(CoverageSplit.class);
 
     private final RiakTableHandle tableHandle;
-    private final PRTable table;
+    // version of the toplevel PRTable definition, see PRTableCache
+    private final String tableVersion;
+    // the paired presto worker, or the Riak host when none is alive
     private final String host;
-    private final String splitData;
+    private final boolean remotelyAccessible;
+    // term_to_binary of the SplitTask
+    private final byte[] splitData;
     private final TupleDomain<ColumnHandle> tupleDomain;
+    // term_to_binary of the 2i query to read the vnode with, see
+    // ScanPlanner; null to fold it
+    private final byte[] indexQuery;
 
     @JsonCreator
     public CoverageSplit(
             @JsonProperty("tableHandle") RiakTableHandle tableHandle,
-            @JsonProperty("table") PRTable table,
+            @JsonProperty("tableVersion") String tableVersion,
             @JsonProperty("host") String host,
-            @JsonProperty("splitData") String splitData,
-            @JsonProperty("tupleDomain") TupleDomain<ColumnHandle> tupleDomain) {
+            @JsonProperty("remotelyAccessible") boolean remotelyAccessible,
+            @JsonProperty("splitData") byte[] splitData,
+            @JsonProperty("tupleDomain") TupleDomain<ColumnHandle> tupleDomain,
+            @JsonProperty("indexQuery") byte[] indexQuery) {
 
         this.tableHandle = checkNotNull(tableHandle);
-        this.table = checkNotNull(table);
+        this.tableVersion = checkNotNull(tableVersion);
         this.host = checkNotNull(host);
+        this.remotelyAccessible = remotelyAccessible;
         this.splitData = checkNotNull(splitData);
         this.tupleDomain = checkNotNull(tupleDomain);
+        this.indexQuery = indexQuery;
     }
 
     @JsonProperty
@@ -64,8 +76,8 @@ public class CoverageSplit implements ConnectorSplit {
     }
 
     @JsonProperty
-    public PRTable getTable() {
-        return table;
+    public String getTableVersion() {
+        return tableVersion;
     }
 
     @JsonProperty
@@ -74,7 +86,7 @@ public class CoverageSplit implements ConnectorSplit {
     }
 
     @JsonProperty
-    public String getSplitData() {
+    public byte[] getSplitData() {
         return splitData;
     }
 
@@ -83,21 +95,51 @@ public class CoverageSplit implements ConnectorSplit {
         return tupleDomain;
     }
 
+    @JsonProperty("indexQuery")
+    public byte[] getIndexQueryData() {
+        return indexQuery;
+    }
+
+    public OtpErlangTuple getIndexQuery()
+            throws OtpErlangDecodeException {
+        if (indexQuery == null) {
+            return null;
+        }
+        return (OtpErlangTuple) new OtpInputStream(indexQuery).read_any();
+    }
+
+    // @doc how the vnode is read: "fold", "index", or "intersect" of
+    // several indexes
+    public String getScan() {
+        try {
+            OtpErlangTuple query = getIndexQuery();
+            if (query == null) {
+                return "fold";
+            }
+            return query.elementAt(0).toString().equals("intersect") ? "intersect" : "index";
+        } catch (OtpErlangDecodeException e) {
+            return "unknown";
+        }
+    }
+
+    @JsonProperty
     @Override
     public boolean isRemotelyAccessible() {
         //log.debug(new JsonCodecFactory().jsonCodec(CoverageSplit.class).toJson(this));
 
-        return false;
+        return remotelyAccessible;
     }
 
     @Override
     public Object getInfo() {
         return ImmutableMap.builder()
                 .put("tableHandle", tableHandle)
-                .put("table", table)
+                .put("tableVersion", tableVersion)
                 .put("host", host)
-                .put("splitData", splitData)
+                .put("remotelyAccessible", remotelyAccessible)
+                .put("splitData", splitData.length)
                 .put("tupleDomain", tupleDomain)
+                .put("scan", getScan())
                 .build();
     }
 
@@ -110,7 +152,7 @@ public class CoverageSplit implements ConnectorSplit {
 
     @NotNull
     public SplitTask getSplitTask()
-            throws OtpErlangDecodeException, DecoderException {
+            throws OtpErlangDecodeException {
         return new SplitTask(splitData);
     }
 
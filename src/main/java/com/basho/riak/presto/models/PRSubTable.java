@@ -10,6 +10,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -141,6 +142,51 @@ public class PRSubTable {
         return columnHandles.build();
     }
 
+    // @doc splits a plain JSONPath like $.a.b, $.a.* or $.a[*] into its keys,
+    // "*" standing for a wildcard. Returns null for anything else (filters,
+    // array indexes, deep scan), which only JsonPath itself can evaluate.
+    public static List<String> pathSegments(String path) {
+        if (path == null || !path.startsWith("$")) {
+            return null;
+        }
+        List<String> segments = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                String key = path.substring(i + 1, end);
+                if (key.isEmpty()) {
+                    return null; // $..a
+                }
+                segments.add(key);
+                i = end;
+            } else if (c == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0) {
+                    return null;
+                }
+                String key = path.substring(i + 1, end).trim();
+                if (key.equals("*")) {
+                    segments.add(key);
+                } else if (key.length() >= 2 &&
+                        (key.startsWith("'") && key.endsWith("'") ||
+                                key.startsWith("\"") && key.endsWith("\""))) {
+                    segments.add(key.substring(1, key.length() - 1));
+                } else {
+                    return null; // $.a[0], $.a[?(@.b)]
+                }
+                i = end + 1;
+            } else {
+                return null;
+            }
+        }
+        return segments;
+    }
+
     public static String parentTableName(String s) {
         String[] parts = s.split(SEPARATOR);
         if (parts.length == 1) {
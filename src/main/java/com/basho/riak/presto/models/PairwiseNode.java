@@ -2,6 +2,7 @@ package com.basho.riak.presto.models;
 
 import com.facebook.presto.spi.HostAddress;
 import com.facebook.presto.spi.Node;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -16,13 +17,18 @@ public class PairwiseNode implements Node {
     public final String localNode;
     public final String host;
     public final int port;
+    // when the presto node last registered itself, in millis
+    public final long heartbeat;
 
+    @JsonCreator
     public PairwiseNode(@JsonProperty("localNode") String localNode,
                         @JsonProperty("host") String host,
-                        @JsonProperty("port") int port) {
+                        @JsonProperty("port") int port,
+                        @JsonProperty("heartbeat") long heartbeat) {
         this.host = host;
         this.port = port;
         this.localNode = localNode;
+        this.heartbeat = heartbeat;
     }
 
     @JsonIgnore
@@ -46,6 +52,11 @@ public class PairwiseNode implements Node {
         return localNode;
     }
 
+    @JsonProperty
+    public long getHeartbeat() {
+        return heartbeat;
+    }
+
     @JsonIgnore
     @Override
     public URI getHttpUri() {
@@ -0,0 +1,63 @@
+package com.basho.riak.presto;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCallLimiter {
+
+    @Test
+    public void testLimitPerNode()
+            throws Exception
+    {
+        CallLimiter limiter = new CallLimiter(2, 0);
+        limiter.acquire("riak@a");
+        limiter.acquire("riak@a");
+        // another node has a limit of its own
+        limiter.acquire("riak@b");
+        try {
+            limiter.acquire("riak@a");
+            fail("expected the limit to be reached");
+        } catch (IOException e) {
+            assertEquals(1, limiter.getWaitTimeouts());
+        }
+        limiter.release("riak@a");
+        limiter.acquire("riak@a");
+        assertEquals(1, limiter.getWaitCount());
+        assertEquals(0, limiter.getWaiters());
+    }
+
+    @Test
+    public void testWaiter()
+            throws Exception
+    {
+        CallLimiter limiter = new CallLimiter(1, TimeUnit.MINUTES.toMillis(1));
+        limiter.acquire("riak@a");
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire("riak@a");
+                acquired.countDown();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        while (limiter.getWaiters() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, acquired.getCount());
+        limiter.release("riak@a");
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getWaiters());
+        assertEquals(1, limiter.getWaitCount());
+        assertEquals(0, limiter.getWaitTimeouts());
+        waiter.join();
+    }
+}
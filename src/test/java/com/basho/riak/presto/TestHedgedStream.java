@@ -0,0 +1,168 @@
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestHedgedStream {
+
+    @Test
+    public void testSlowPrimaryIsHedged()
+            throws Exception
+    {
+        Hedging hedging = warmHedging();
+        FakeStream primary = new FakeStream(0, "primary");
+        FakeStream alternate = new FakeStream(-1, "alternate");
+        HedgedStream stream = new HedgedStream(primary, resumeAfter -> alternate, hedging, 100);
+
+        assertEquals(batch("alternate"), stream.next());
+        assertTrue(primary.closed);
+        assertEquals(1, hedging.getFired());
+        assertEquals(1, hedging.getWon());
+        assertNull(stream.next());
+        assertTrue(stream.isDone());
+    }
+
+    @Test
+    public void testFastPrimaryIsNotHedged()
+            throws Exception
+    {
+        Hedging hedging = warmHedging();
+        FakeStream primary = new FakeStream(-1, "primary");
+        HedgedStream stream = new HedgedStream(primary, resumeAfter -> new FakeStream(-1, "alternate"),
+                hedging, 100);
+
+        assertEquals(batch("primary"), stream.next());
+        assertEquals(0, hedging.getFired());
+        assertFalse(primary.closed);
+    }
+
+    @Test
+    public void testFastPrimaryIsReadDirectly()
+            throws Exception
+    {
+        Hedging hedging = warmHedging();
+        FakeStream primary = new FakeStream(-1, "a", "b");
+        HedgedStream stream = new HedgedStream(primary, resumeAfter -> new FakeStream(-1, "alternate"),
+                hedging, 100);
+
+        assertEquals(batch("a"), stream.next());
+        assertEquals(batch("b"), stream.next());
+        assertNull(stream.next());
+        // no batch went through the executor of the hedges
+        assertEquals("[" + Thread.currentThread() + "]", primary.readers.toString());
+        assertEquals(0, hedging.getFired());
+    }
+
+    @Test
+    public void testLateBatchIsHedged()
+            throws Exception
+    {
+        Hedging hedging = warmHedging();
+        FakeStream primary = new FakeStream(2, "a", "b", "c");
+        List<String> resumed = new ArrayList<>();
+        HedgedStream stream = new HedgedStream(primary, resumeAfter -> {
+            resumed.add(new String(resumeAfter, StandardCharsets.UTF_8));
+            return new FakeStream(-1, "c", "d");
+        }, hedging, 100);
+
+        assertEquals(batch("a"), stream.next());
+        assertEquals(batch("b"), stream.next());
+        // the third batch is late, so the rest is folded from the replica
+        assertEquals(batch("c"), stream.next());
+        assertEquals("[b]", resumed.toString());
+        assertTrue(primary.closed);
+        assertEquals(1, hedging.getWon());
+        assertEquals(batch("d"), stream.next());
+        assertNull(stream.next());
+    }
+
+    private static Hedging warmHedging() {
+        Hedging hedging = new Hedging(new RiakConfig().setHedgeFactor(2).setHedgeMinMillis(50));
+        for (int i = 0; i < 4; i++) {
+            hedging.firstBatch(1000000);
+            hedging.nextBatch(1000000);
+        }
+        return hedging;
+    }
+
+    // one projected object keyed name
+    private static OtpErlangList batch(String name) {
+        OtpErlangObject[] object = {
+                new OtpErlangBinary(name.getBytes(StandardCharsets.UTF_8)),
+                new OtpErlangBinary(new byte[0]),
+                new OtpErlangList()};
+        return new OtpErlangList(new OtpErlangObject[]{new OtpErlangTuple(object)});
+    }
+
+    // one batch per name, stalling before batch stallAt until closed
+    private static class FakeStream implements BatchStream {
+        private final int stallAt;
+        private final String[] names;
+        private final CountDownLatch closing = new CountDownLatch(1);
+        private volatile int read;
+        private volatile boolean closed;
+        private final Set<Thread> readers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        FakeStream(int stallAt, String... names) {
+            this.stallAt = stallAt;
+            this.names = names;
+        }
+
+        @Override
+        public OtpErlangList poll(long timeoutNanos) {
+            readers.add(Thread.currentThread());
+            try {
+                if (read == stallAt && !closing.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                    return NOT_READY;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return next();
+        }
+
+        @Override
+        public OtpErlangList next() {
+            readers.add(Thread.currentThread());
+            if (read == stallAt) {
+                try {
+                    closing.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (closed || read == names.length) {
+                return null;
+            }
+            return batch(names[read++]);
+        }
+
+        @Override
+        public boolean isDone() {
+            return closed || read == names.length;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closing.countDown();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestIndexHistogram {
+    private static final OtpErlangBinary FIELD = bin("age_int");
+
+    private static OtpErlangBinary bin(String s) {
+        return new OtpErlangBinary(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static OtpErlangTuple tuple(OtpErlangObject... elems) {
+        return new OtpErlangTuple(elems);
+    }
+
+    private static OtpErlangTuple range(long low, long high, long entries, long distinct) {
+        return tuple(new OtpErlangLong(low), new OtpErlangLong(high),
+                new OtpErlangLong(entries), new OtpErlangLong(distinct));
+    }
+
+    private static IndexHistogram histogram(boolean complete, OtpErlangTuple... ranges)
+            throws OtpErlangRangeException {
+        return IndexHistogram.fromErlang(tuple(new OtpErlangAtom(complete), new OtpErlangList(ranges)));
+    }
+
+    private static OtpErlangTuple eq(long v) {
+        return tuple(new OtpErlangAtom("eq"), FIELD, new OtpErlangLong(v));
+    }
+
+    private static OtpErlangTuple between(long start, long end) {
+        return tuple(new OtpErlangAtom("range"), FIELD, new OtpErlangLong(start), new OtpErlangLong(end));
+    }
+
+    @Test
+    public void testEstimate()
+            throws OtpErlangRangeException {
+        // 1 on its own 500 times, then 2..10 100 times each, 11..20 10 times each
+        IndexHistogram h = histogram(true, range(1, 1, 500, 1), range(2, 10, 900, 9), range(11, 20, 100, 10));
+        assertEquals(500, h.estimate(eq(1)));
+        assertEquals(100, h.estimate(eq(5)));
+        assertEquals(10, h.estimate(eq(15)));
+        assertEquals(0, h.estimate(eq(0)));
+        assertEquals(0, h.estimate(eq(21)));
+        assertEquals(1000, h.estimate(between(5, 12)));
+        assertEquals(100, h.estimate(between(15, 100)));
+        assertEquals(600, h.estimate(tuple(new OtpErlangAtom("union"),
+                new OtpErlangList(new OtpErlangObject[]{eq(1), eq(2)}))));
+    }
+
+    @Test
+    public void testEstimateBeyondRead()
+            throws OtpErlangRangeException {
+        // just the lowest terms were read
+        IndexHistogram h = histogram(false, range(1, 10, 1000, 10), range(11, 20, 1000, 40));
+        // an average term
+        assertEquals(40, h.estimate(eq(1000)));
+        assertEquals(1000, h.estimate(between(1, 5)));
+        assertEquals(IndexHistogram.UNKNOWN, h.estimate(between(15, 1000)));
+        assertEquals(IndexHistogram.UNKNOWN, h.estimate(tuple(new OtpErlangAtom("union"),
+                new OtpErlangList(new OtpErlangObject[]{eq(1), between(15, 1000)}))));
+    }
+
+    @Test
+    public void testCompare() {
+        assertTrue(IndexHistogram.compare(new OtpErlangLong(-5), new OtpErlangLong(3)) < 0);
+        assertTrue(IndexHistogram.compare(new OtpErlangLong(3), bin("")) < 0);
+        // bytes are unsigned, as in Erlang
+        assertTrue(IndexHistogram.compare(bin("z"), new OtpErlangBinary(new byte[]{(byte) 0xff})) < 0);
+        assertTrue(IndexHistogram.compare(bin("ab"), bin("a")) > 0);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import com.basho.riak.presto.models.RiakColumn;
+import com.facebook.presto.spi.type.BigintType;
+import com.facebook.presto.spi.type.BooleanType;
+import com.facebook.presto.spi.type.VarcharType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestIndexQuery {
+    @Test
+    public void testIndexField() {
+        assertEquals("$key", IndexQuery.indexField(new RiakColumn("__key", VarcharType.VARCHAR, "", false, true)));
+        assertEquals("age_int", IndexQuery.indexField(new RiakColumn("age", BigintType.BIGINT, "", true, false)));
+        assertEquals("name_bin", IndexQuery.indexField(new RiakColumn("name", VarcharType.VARCHAR, "", true, false)));
+        assertNull(IndexQuery.indexField(new RiakColumn("name", VarcharType.VARCHAR, "", false, false)));
+        assertNull(IndexQuery.indexField(new RiakColumn("ok", BooleanType.BOOLEAN, "", true, false)));
+    }
+}
@@ -45,6 +45,19 @@ public class TestPRTable {
         assert(null != t.getColumnHandles("a"));
     }
 
+    @Test
+    public void testPathSegments()
+    {
+        assert(PRSubTable.pathSegments("$").isEmpty());
+        assert(PRSubTable.pathSegments("$.inventory.*").equals(Arrays.asList("inventory", "*")));
+        assert(PRSubTable.pathSegments("$.col1[*]").equals(Arrays.asList("col1", "*")));
+        assert(PRSubTable.pathSegments("$['a b'].c").equals(Arrays.asList("a b", "c")));
+        assert(PRSubTable.pathSegments("$..c") == null);
+        assert(PRSubTable.pathSegments("$.a[0]") == null);
+        assert(PRSubTable.pathSegments("$.a[?(@.b > 1)]") == null);
+        assert(PRSubTable.pathSegments("a.b") == null);
+    }
+
     public static PRTable example(String tableName) {
 
         List<RiakColumn> cols = Arrays.asList(
@@ -0,0 +1,48 @@
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestProjectedRiakObject {
+
+    @Test
+    public void testDecode()
+    {
+        OtpErlangObject[] name = {new OtpErlangBinary("name".getBytes()), new OtpErlangBinary("riak".getBytes())};
+        OtpErlangObject[] age = {new OtpErlangBinary("age".getBytes()), new OtpErlangLong(42)};
+        OtpErlangObject[] score = {new OtpErlangBinary("score".getBytes()), new OtpErlangDouble(0.5)};
+        OtpErlangObject[] ok = {new OtpErlangBinary("ok".getBytes()), new OtpErlangAtom("true")};
+        OtpErlangObject[] nil = {new OtpErlangBinary("nil".getBytes()), new OtpErlangAtom("null")};
+        OtpErlangObject[] row = {new OtpErlangTuple(name), new OtpErlangTuple(age),
+                new OtpErlangTuple(score), new OtpErlangTuple(ok), new OtpErlangTuple(nil)};
+        OtpErlangObject[] rows = {new OtpErlangList(row), new OtpErlangList()};
+        OtpErlangObject[] item = {new OtpErlangBinary("key".getBytes()),
+                new OtpErlangBinary("vtag".getBytes()), new OtpErlangList(rows)};
+        OtpErlangTuple t = new OtpErlangTuple(item);
+
+        assert(ProjectedRiakObject.isProjected(t));
+        ProjectedRiakObject o = new ProjectedRiakObject(t);
+        assert(Arrays.equals("key".getBytes(), o.getKey()));
+        assertEquals("vtag", o.getVTag());
+        assertEquals(2, o.getRows().size());
+        Map<String, Object> r = o.getRows().get(0);
+        assertEquals("riak", r.get("name"));
+        assertEquals(42L, r.get("age"));
+        assertEquals(0.5, r.get("score"));
+        assertEquals(Boolean.TRUE, r.get("ok"));
+        assert(r.containsKey("nil") && r.get("nil") == null);
+        assert(o.getRows().get(1).isEmpty());
+    }
+
+    @Test
+    public void testNotProjected()
+    {
+        OtpErlangObject[] robj = {new OtpErlangAtom("r_object"), new OtpErlangAtom("b"), new OtpErlangAtom("k")};
+        assert(!ProjectedRiakObject.isProjected(new OtpErlangTuple(robj)));
+    }
+}
@@ -0,0 +1,174 @@
+package com.basho.riak.presto;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRetryingStream {
+
+    @Test
+    public void testKeyHashSet()
+    {
+        ReadKeys.KeyHashSet set = new ReadKeys.KeyHashSet();
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        for (long i = 1; i < 10000; i++) {
+            assertTrue(set.add(i * 0x9E3779B97F4A7C15L));
+        }
+        for (long i = 1; i < 10000; i++) {
+            assertFalse(set.add(i * 0x9E3779B97F4A7C15L));
+            assertTrue(set.contains(i * 0x9E3779B97F4A7C15L));
+        }
+        assertFalse(set.contains(-1));
+        assertTrue(set.add(-1));
+        assertEquals(10001, set.size());
+    }
+
+    @Test
+    public void testFailover()
+            throws Exception
+    {
+        List<byte[]> restarts = new ArrayList<>();
+        RetryingStream stream = new RetryingStream(new FakeStream(1, "a", "b", "c"), "split",
+                resumeAfter -> {
+                    restarts.add(resumeAfter);
+                    return new FakeStream(-1, "b", "c");
+                }, 2, 0, 100);
+
+        assertEquals("[a]", keys(stream.next()));
+        assertEquals("[b]", keys(stream.next()));
+        assertEquals("[c]", keys(stream.next()));
+        assertNull(stream.next());
+        assertEquals(1, stream.getRetries());
+        // the keys came in order, so the fold resumes after the last one read
+        assertEquals(1, restarts.size());
+        assertEquals("a", new String(restarts.get(0), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRetriesRunOut()
+            throws Exception
+    {
+        int[] starts = {0};
+        RetryingStream stream = new RetryingStream(new FakeStream(0, "a"), "split",
+                resumeAfter -> {
+                    starts[0]++;
+                    if (starts[0] == 1) {
+                        throw new IOException("no node");
+                    }
+                    return new FakeStream(0, "a");
+                }, 2, 0, 100);
+        try {
+            stream.next();
+            fail("expected the last failure");
+        } catch (IOException e) {
+            assertEquals("fold failed", e.getMessage());
+        }
+        // a failing start counts as a retry as well
+        assertEquals(2, starts[0]);
+        assertEquals(2, stream.getRetries());
+    }
+
+    @Test
+    public void testDedupeOutOfOrder()
+            throws Exception
+    {
+        List<byte[]> restarts = new ArrayList<>();
+        RetryingStream stream = new RetryingStream(new FakeStream(2, "c", "a", "d"), "split",
+                resumeAfter -> {
+                    restarts.add(resumeAfter);
+                    return new FakeStream(-1, "a", "b", "c", "d");
+                }, 1, 0, 100);
+
+        assertEquals("[c]", keys(stream.next()));
+        assertEquals("[a]", keys(stream.next()));
+        assertEquals("[b]", keys(stream.next()));
+        assertEquals("[d]", keys(stream.next()));
+        assertNull(stream.next());
+        assertEquals(Arrays.asList((byte[]) null), restarts);
+    }
+
+    @Test
+    public void testTooManyKeysOutOfOrder()
+            throws Exception
+    {
+        RetryingStream stream = new RetryingStream(new FakeStream(2, "b", "a", "c"), "split",
+                resumeAfter -> new FakeStream(-1, "a", "b", "c"), 1, 0, 1);
+
+        stream.next();
+        stream.next();
+        try {
+            stream.next();
+            fail("expected no retry without the keys read");
+        } catch (IOException e) {
+            assertEquals(0, stream.getRetries());
+        }
+    }
+
+    private static String keys(OtpErlangList batch)
+    {
+        List<String> keys = new ArrayList<>();
+        for (OtpErlangObject o : batch) {
+            keys.add(new String(((OtpErlangBinary) ((OtpErlangTuple) o).elementAt(0)).binaryValue(),
+                    StandardCharsets.UTF_8));
+        }
+        return keys.toString();
+    }
+
+    // one projected object per batch, failing after the first failAfter
+    private static class FakeStream
+            implements BatchStream
+    {
+        private final int failAfter;
+        private final String[] keys;
+        private int read;
+
+        FakeStream(int failAfter, String... keys)
+        {
+            this.failAfter = failAfter;
+            this.keys = keys;
+        }
+
+        @Override
+        public OtpErlangList next()
+                throws IOException
+        {
+            if (read == failAfter) {
+                throw new IOException("fold failed");
+            }
+            if (read == keys.length) {
+                return null;
+            }
+            OtpErlangObject[] object = {
+                    new OtpErlangBinary(keys[read++].getBytes(StandardCharsets.UTF_8)),
+                    new OtpErlangBinary(new byte[0]),
+                    new OtpErlangList()};
+            return new OtpErlangList(new OtpErlangObject[]{new OtpErlangTuple(object)});
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return read == keys.length;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
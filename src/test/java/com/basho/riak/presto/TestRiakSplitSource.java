@@ -0,0 +1,69 @@
+package com.basho.riak.presto;
+
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.HostAddress;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestRiakSplitSource {
+
+    @Test
+    public void testBatches()
+            throws Exception
+    {
+        RiakSplitSource source = new RiakSplitSource("riak");
+        CompletableFuture<List<ConnectorSplit>> batch = source.getNextBatch(2);
+        assert(!batch.isDone());
+
+        source.addSplits(ImmutableList.of(new DummySplit(), new DummySplit(), new DummySplit()));
+        assertEquals(2, batch.get().size());
+        assert(!source.isFinished());
+
+        assertEquals(1, source.getNextBatch(2).get().size());
+        batch = source.getNextBatch(2);
+        assert(!batch.isDone());
+
+        source.noMoreSplits();
+        assertEquals(0, batch.get().size());
+        assert(source.isFinished());
+    }
+
+    @Test
+    public void testFailure()
+            throws Exception
+    {
+        RiakSplitSource source = new RiakSplitSource("riak");
+        CompletableFuture<List<ConnectorSplit>> batch = source.getNextBatch(2);
+        source.fail(new IllegalStateException("no coverage plan"));
+        try {
+            batch.get();
+            assert(false);
+        } catch (ExecutionException e) {
+            assert(e.getCause() instanceof IllegalStateException);
+        }
+        assert(!source.isFinished());
+    }
+
+    private static class DummySplit implements ConnectorSplit {
+        @Override
+        public boolean isRemotelyAccessible() {
+            return true;
+        }
+
+        @Override
+        public List<HostAddress> getAddresses() {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public Object getInfo() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basho.riak.presto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestScanPlanner {
+    @Test
+    public void testChoose() {
+        // most of the bucket: a fold reads it faster
+        assertEquals("[]", Arrays.toString(ScanPlanner.choose(1000, new long[]{900}, 5)));
+        assertEquals("[0]", Arrays.toString(ScanPlanner.choose(1000, new long[]{10}, 5)));
+        // the second index narrows the first one down enough to be read too
+        assertEquals("[1, 0]", Arrays.toString(ScanPlanner.choose(100000, new long[]{5000, 2000}, 5)));
+        // but not when it matches almost everything
+        assertEquals("[0]", Arrays.toString(ScanPlanner.choose(100000, new long[]{2000, 99000}, 5)));
+        assertEquals("[]", Arrays.toString(ScanPlanner.choose(0, new long[]{0}, 5)));
+    }
+
+    @Test
+    public void testChooseCapped() {
+        // the total was counted only until folding costs more than the index
+        assertEquals("[0]", Arrays.toString(ScanPlanner.choose(153001, true, new long[]{30000}, 100000, 5)));
+        // an index matching at least max keys is never used
+        assertEquals("[]", Arrays.toString(ScanPlanner.choose(1000000, false, new long[]{100000}, 100000, 5)));
+        assertEquals("[1]", Arrays.toString(ScanPlanner.choose(1000000, false, new long[]{100000, 500}, 100000, 5)));
+    }
+}
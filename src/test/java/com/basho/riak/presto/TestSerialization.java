@@ -1,7 +1,6 @@
 package com.basho.riak.presto;
 
 import com.basho.riak.presto.models.CoverageSplit;
-import com.basho.riak.presto.models.PRTable;
 import com.basho.riak.presto.models.RiakTableHandle;
 import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.TupleDomain;
@@ -17,13 +16,17 @@ public class TestSerialization {
     @Test
     public void testCoverageSplit() {
         RiakTableHandle handle = new RiakTableHandle("c", "s", "t");
-        PRTable table = TestPRTable.example("boom");
+        String version = PRTableCache.version("{\"name\":\"t\"}");
+        byte[] splitData = {(byte) 131, 106};
         CoverageSplit coverageSplit = new CoverageSplit(handle,
-                table, "192.168.0.1", "", TupleDomain.<ColumnHandle>all());
+                version, "192.168.0.1", true, splitData, TupleDomain.<ColumnHandle>all(), null);
         String s = MetadataUtil.COV_CODEC.toJson(coverageSplit);
 
         CoverageSplit cs2 = MetadataUtil.COV_CODEC.fromJson(s);
         assert(coverageSplit.getTableHandle().getTableName()
                 .equals(cs2.getTableHandle().getTableName()));
+        assert(version.equals(cs2.getTableVersion()));
+        assert(Arrays.equals(splitData, cs2.getSplitData()));
+        assert(!version.equals(PRTableCache.version("{\"name\":\"u\"}")));
     }
 }
@@ -2,13 +2,17 @@ package com.basho.riak.presto;
 
 import com.basho.riak.presto.SplitTask;
 import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangLong;
 import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.codec.DecoderException;
 import org.junit.Test;
+
+import java.util.List;
 import static org.junit.Assert.*;
 /**
  * Created by kuenishi on 14/03/29.
@@ -46,4 +50,45 @@ public class TestSplitTask {
         assertEquals(splitTask.getTask(), task2.getTask());
         assertEquals(t, task2.getTask());
     }
+
+    @Test
+    public void testSlices()
+            throws OtpErlangDecodeException, DecoderException
+    {
+        OtpErlangObject[] vnode = {new OtpErlangLong(12), new OtpErlangAtom("dev@127.0.0.1")};
+        OtpErlangObject[] vnode2 = {new OtpErlangLong(34), new OtpErlangAtom("dev@1.1.1.1")};
+        OtpErlangObject[] vnodes = {new OtpErlangTuple(vnode), new OtpErlangTuple(vnode2)};
+        OtpErlangObject[] plan = {new OtpErlangList(vnodes), new OtpErlangList()};
+        Coverage coverage = new Coverage(new OtpErlangTuple(plan));
+
+        assertEquals(2, coverage.getVnodeCount());
+        assertEquals(2, coverage.getSplits().size());
+        assertEquals(1, coverage.getSplits().get(0).getSliceCount());
+
+        List<SplitTask> splits = coverage.getSplits(3);
+        assertEquals(6, splits.size());
+        for (int i = 0; i < 3; i++) {
+            SplitTask task = new SplitTask(splits.get(i).toBytes());
+            assertEquals(i, task.getSliceIndex());
+            assertEquals(3, task.getSliceCount());
+            assertEquals("127.0.0.1", task.getHost());
+        }
+        assertEquals("1.1.1.1", splits.get(5).getHost());
+    }
+
+    @Test
+    public void testKeyLookup()
+            throws OtpErlangDecodeException, DecoderException
+    {
+        OtpErlangObject[] vnode = {new OtpErlangLong(12), new OtpErlangAtom("dev@127.0.0.1")};
+        OtpErlangObject[] keys = {new OtpErlangBinary("k1".getBytes()), new OtpErlangBinary("k2".getBytes())};
+        SplitTask task = SplitTask.keyLookup(new OtpErlangTuple(vnode), new OtpErlangList(keys));
+
+        SplitTask task2 = new SplitTask(task.toBytes());
+        assertEquals("127.0.0.1", task2.getHost());
+        assertEquals("dev@127.0.0.1", task2.getNode());
+        assertEquals(new OtpErlangList(keys), task2.getKeys());
+        assertEquals(1, task2.getSliceCount());
+        assertNull(new SplitTask("dev@127.0.0.1", new OtpErlangTuple(vnode)).getKeys());
+    }
 }